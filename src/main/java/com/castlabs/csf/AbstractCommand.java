@@ -7,8 +7,12 @@ package com.castlabs.csf;
 
 import org.kohsuke.args4j.Option;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
@@ -17,8 +21,42 @@ public abstract class AbstractCommand implements Command {
     @Option(name = "--verbose", aliases = "-v", usage = "use switch to produce log output")
     protected boolean verbose = false;
 
+    @Option(name = "--directory", aliases = "-C", usage = "Resolves relative input and output files against this directory instead of the current directory")
+    protected File directory = null;
+
+    /**
+     * Verbosity the logging is configured with or <code>null</code> if it isn't configured yet.
+     */
+    private static Boolean configuredVerbose = null;
+
+    private static final List<Handler> additionalHandlers = new ArrayList<Handler>();
+
+    /**
+     * Configures logging unless it's already configured with the same verbosity. Several commands of a batch
+     * share the configuration and their output is not interrupted by reconfiguration.
+     */
     protected Logger setupLogger() {
-        Logger logger = Logger.getLogger("dash");
+        synchronized (AbstractCommand.class) {
+            Logger logger = Logger.getLogger("dash");
+            if (configuredVerbose == null || configuredVerbose != verbose) {
+                configureLogger(logger);
+                configuredVerbose = verbose;
+            }
+            return logger;
+        }
+    }
+
+    /**
+     * Adds a handler to the logger that survives reconfiguration by later commands.
+     */
+    protected static void addLogHandler(Handler handler) {
+        synchronized (AbstractCommand.class) {
+            additionalHandlers.add(handler);
+            Logger.getLogger("dash").addHandler(handler);
+        }
+    }
+
+    private void configureLogger(Logger logger) {
         InputStream stream;
         if (verbose) {
             stream = AbstractCommand.class.getResourceAsStream("/log-verbose.properties");
@@ -32,9 +70,29 @@ public abstract class AbstractCommand implements Command {
         }
         logger.setLevel(Level.FINE);
         logger.addHandler(new java.util.logging.ConsoleHandler());
+        for (Handler handler : additionalHandlers) {
+            logger.addHandler(handler);
+        }
         logger.setUseParentHandlers(false);
+    }
+
+    protected File resolve(File file) {
+        if (directory == null || file.isAbsolute()) {
+            return file;
+        }
+        return new File(directory, file.getPath());
+    }
+
+    protected File resolve(String filename) {
+        return resolve(new File(filename));
+    }
 
-        return logger;
+    protected List<File> resolve(List<File> files) {
+        List<File> resolved = new ArrayList<File>(files.size());
+        for (File file : files) {
+            resolved.add(resolve(file));
+        }
+        return resolved;
     }
 
 }
@@ -0,0 +1,195 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.FileOptionHandler;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many commands in one JVM. The job file has one chain of commands per line. A chain is one or more command
+ * lines as they would be passed to the tool, separated by <code>&amp;&amp;</code>, e.g.
+ * <pre>
+ * streaming-target -C title1 video.mp4 &amp;&amp; streaming-target -C title1 audio.mp4 &amp;&amp; create-simple-manifest -C title1 video.uvv audio.uva
+ * </pre>
+ * The commands of a chain run one after the other and the chain stops at the first failing command. Chains run in
+ * parallel. Empty lines and lines starting with <code>#</code> are ignored, arguments containing spaces can be
+ * put in double quotes.
+ */
+public class BatchCommand extends AbstractCommand {
+    @Argument(required = true, handler = FileOptionHandler.class, usage = "Job file", metaVar = "jobs.txt")
+    protected File jobFile;
+
+    @Option(name = "--jobs", aliases = "-j", usage = "Number of chains run in parallel")
+    protected int jobs = 1;
+
+    Logger logger;
+
+    /**
+     * Outcome of a single command.
+     */
+    static class Result {
+        final int line;
+        final String commandLine;
+        String status = "SKIPPED";
+        int exitCode = -1;
+        long nanos;
+
+        Result(int line, String commandLine) {
+            this.line = line;
+            this.commandLine = commandLine;
+        }
+    }
+
+    public int run() throws Exception {
+        logger = setupLogger();
+        final List<List<Result>> chains = readJobFile(resolve(jobFile));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, chains.size())));
+        long start = System.nanoTime();
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final List<Result> chain : chains) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        runChain(chain, logger);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return printSummary(chains, System.nanoTime() - start);
+    }
+
+    private List<List<Result>> readJobFile(File file) throws IOException, CommandAbortException {
+        List<List<Result>> chains = new ArrayList<List<Result>>();
+        LineNumberReader reader = new LineNumberReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                chains.add(parseChain(reader.getLineNumber(), line));
+            }
+        } finally {
+            reader.close();
+        }
+        return chains;
+    }
+
+    /**
+     * Splits a line of the job file into its commands.
+     */
+    static List<Result> parseChain(int line, String chainLine) throws CommandAbortException {
+        List<Result> chain = new ArrayList<Result>();
+        for (String commandLine : chainLine.split("&&")) {
+            commandLine = commandLine.trim();
+            if (commandLine.isEmpty()) {
+                throw new CommandAbortException("Line " + line + ": empty command");
+            }
+            chain.add(new Result(line, commandLine));
+        }
+        return chain;
+    }
+
+    /**
+     * Runs the commands of the chain until one fails.
+     */
+    static void runChain(List<Result> chain, Logger logger) {
+        for (Result result : chain) {
+            logger.info(String.format("Job %d: %s", result.line, result.commandLine));
+            long start = System.nanoTime();
+            try {
+                Main main = new Main();
+                new CmdLineParser(main).parseArgument(tokenize(result.commandLine));
+                if (main.command instanceof BatchCommand || main.command instanceof ServeCommand) {
+                    throw new CommandAbortException("batch and serve cannot run as jobs");
+                }
+                result.exitCode = main.command.run();
+                result.status = result.exitCode == 0 ? "OK" : "FAILED";
+            } catch (CommandAbortException e) {
+                result.status = "FAILED: " + e.getMessage();
+            } catch (CmdLineException e) {
+                result.status = "FAILED: " + e.getMessage();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Job " + result.line + " failed", e);
+                result.status = "FAILED: " + e;
+            } finally {
+                result.nanos = System.nanoTime() - start;
+            }
+            logger.info(String.format("Job %d: %s after %.2f seconds", result.line, result.status, result.nanos / 1e9));
+            if (!result.status.equals("OK")) {
+                return;
+            }
+        }
+    }
+
+    private int printSummary(List<List<Result>> chains, long nanos) {
+        int failed = 0;
+        int total = 0;
+        System.out.println(String.format("%5s %9s  %-40s %s", "line", "seconds", "status", "command"));
+        for (List<Result> chain : chains) {
+            for (Result result : chain) {
+                total++;
+                if (!result.status.equals("OK")) {
+                    failed++;
+                }
+                System.out.println(String.format("%5d %9.2f  %-40s %s", result.line, result.nanos / 1e9, result.status, result.commandLine));
+            }
+        }
+        System.out.println(String.format("%d of %d commands failed or skipped, total %.2f seconds", failed, total, nanos / 1e9));
+        return failed > 0 ? 1 : 0;
+    }
+
+    /**
+     * Splits a command line at white space. Double quotes group words to a single argument.
+     */
+    static String[] tokenize(String commandLine) throws CommandAbortException {
+        List<String> arguments = new ArrayList<String>();
+        StringBuilder argument = null;
+        boolean quoted = false;
+        for (char c : commandLine.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+                if (argument == null) {
+                    argument = new StringBuilder();
+                }
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (argument != null) {
+                    arguments.add(argument.toString());
+                    argument = null;
+                }
+            } else {
+                if (argument == null) {
+                    argument = new StringBuilder();
+                }
+                argument.append(c);
+            }
+        }
+        if (quoted) {
+            throw new CommandAbortException("Unbalanced quotes in: " + commandLine);
+        }
+        if (argument != null) {
+            arguments.add(argument.toString());
+        }
+        return arguments.toArray(new String[arguments.size()]);
+    }
+}
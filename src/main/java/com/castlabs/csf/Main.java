@@ -27,11 +27,13 @@ public class Main {
             handler = SubCommandHandler.class,
             required = true,
             metaVar = "command",
-            usage = "Command required. Supported commands are: [streaming-target]"
+            usage = "Command required. Supported commands are: [streaming-target, create-simple-manifest, batch, serve]"
     )
     @SubCommands({
             @SubCommand(name = "streaming-target", impl = CreateStreamingDeliveryTargetFileset.class),
-            @SubCommand(name = "create-simple-manifest", impl = CreateManifestForFileset.class)
+            @SubCommand(name = "create-simple-manifest", impl = CreateManifestForFileset.class),
+            @SubCommand(name = "batch", impl = BatchCommand.class),
+            @SubCommand(name = "serve", impl = ServeCommand.class)
     })
     Command command;
 
@@ -41,7 +43,10 @@ public class Main {
         CmdLineParser parser = new CmdLineParser(m);
         try {
             parser.parseArgument(args);
-            m.command.run();
+            int exitCode = m.command.run();
+            if (exitCode != 0) {
+                System.exit(exitCode);
+            }
         } catch (Command.CommandAbortException e) {
             System.err.println(e.getMessage());
             System.exit(1022);
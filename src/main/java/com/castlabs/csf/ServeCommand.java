@@ -0,0 +1,260 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf;
+
+import com.castlabs.csf.cff.CreateStreamingDeliveryTargetFileset;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a JVM running and executes jobs received on a loopback TCP port. Each connection sends the server's token
+ * and then one chain of commands in the job file format of {@link BatchCommand} as a single line, e.g.
+ * <pre>
+ * (cat ~/.csf-serve-token; echo "streaming-target -C /data/title1 audio_ger.mp4") | nc 127.0.0.1 9301
+ * </pre>
+ * The server answers line by line: <code>QUEUED</code> when the job has been accepted, the job's log output while it
+ * runs and finally <code>EXIT 0</code> or <code>EXIT 1</code>. If the queue is full the job is not accepted and
+ * the answer is <code>BUSY</code> - the caller is expected to retry later. A wrong token is answered with
+ * <code>DENIED</code>.
+ * <p/>
+ * Jobs share one encryption pool (<code>--encryption-threads</code>); its threads and ciphers are kept for the
+ * server's lifetime.
+ * <p/>
+ * Jobs read and write files with the rights of the server's account. Every local user can connect to the port, the
+ * token restricts job submission to those who can read the token file.
+ */
+public class ServeCommand extends AbstractCommand {
+    private static final int REQUEST_TIMEOUT = 10000;
+    /**
+     * Connections whose token and job line are read at the same time. A slow caller only holds up its own reader.
+     */
+    private static final int MAX_PENDING_CONNECTIONS = 32;
+
+    @Option(name = "--port", usage = "Loopback port the server listens on")
+    protected int port = 9301;
+
+    @Option(name = "--jobs", aliases = "-j", usage = "Number of jobs run in parallel")
+    protected int jobs = 1;
+
+    @Option(name = "--queue-size", usage = "Number of accepted jobs waiting for execution. Further jobs are rejected with BUSY.")
+    protected int queueSize = 16;
+
+    @Option(name = "--token-file", usage = "File holding the token callers have to send before the job. " +
+            "It has to be created beforehand and be readable by the owner only.")
+    protected File tokenFile = new File(System.getProperty("user.home"), ".csf-serve-token");
+
+    @Option(name = "--encryption-threads", usage = "Size of the encryption pool shared by all jobs. Jobs with " +
+            "--encryption-threads encrypt on it instead of starting a pool of their own.")
+    protected int encryptionThreads = Runtime.getRuntime().availableProcessors();
+
+    private byte[] token;
+
+    Logger logger;
+
+    /**
+     * Connection of the job the current thread works for. Threads started by a job inherit it, so the log output of
+     * the commands' worker pools reaches the right caller as well.
+     */
+    private static final InheritableThreadLocal<PrintWriter> connection = new InheritableThreadLocal<PrintWriter>();
+
+    /**
+     * Forwards log records to the connection of the job that emitted them.
+     */
+    private static class ConnectionHandler extends Handler {
+        ConnectionHandler() {
+            setLevel(Level.INFO);
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            PrintWriter out = connection.get();
+            if (out != null && isLoggable(record)) {
+                out.println(record.getLevel() + ": " + record.getMessage());
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        /**
+         * Called on each reconfiguration - the connections stay open.
+         */
+        @Override
+        public void close() {
+        }
+    }
+
+    public int run() throws Exception {
+        logger = setupLogger();
+        addLogHandler(new ConnectionHandler());
+        token = loadToken().getBytes("UTF-8");
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize));
+        ThreadPoolExecutor readers = new ThreadPoolExecutor(0, MAX_PENDING_CONNECTIONS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+        ThreadPoolExecutor encryptionExecutor = new ThreadPoolExecutor(encryptionThreads, encryptionThreads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        // started here and not by a job - they would inherit the job's connection
+        encryptionExecutor.prestartAllCoreThreads();
+        CreateStreamingDeliveryTargetFileset.setSharedEncryptionExecutor(encryptionExecutor);
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        logger.info(String.format("Listening on %s:%d with %d worker(s), %d queue slots and %d encryption thread(s), token in %s",
+                serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort(), jobs, queueSize, encryptionThreads, tokenFile));
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                try {
+                    readers.execute(new Runnable() {
+                        public void run() {
+                            accept(socket, executor);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    logger.warning("Rejected connection - " + MAX_PENDING_CONNECTIONS + " connections pending");
+                    reject(socket, "BUSY " + MAX_PENDING_CONNECTIONS + " connections pending");
+                }
+            }
+        } finally {
+            serverSocket.close();
+            readers.shutdownNow();
+            executor.shutdownNow();
+            CreateStreamingDeliveryTargetFileset.setSharedEncryptionExecutor(null);
+            encryptionExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the token from the token file. The file is not generated: a file created here would be readable by
+     * others until its permissions are changed, and anyone who opened it in that window could read the token later.
+     */
+    private String loadToken() throws IOException, CommandAbortException {
+        if (!tokenFile.exists()) {
+            throw new CommandAbortException("Token file " + tokenFile + " doesn't exist. Create it readable by the " +
+                    "owner only, e.g. (umask 077; head -c 16 /dev/urandom | od -An -tx1 | tr -d ' \\n' > " + tokenFile + ")");
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(tokenFile), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (line == null || line.trim().isEmpty()) {
+                throw new CommandAbortException("Token file " + tokenFile + " is empty");
+            }
+            return line.trim();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads token and job of a connection and queues the job. Runs on a connection reader thread, not on the
+     * thread accepting connections.
+     */
+    private void accept(final Socket socket, ThreadPoolExecutor executor) {
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            String callerToken = in.readLine();
+            if (callerToken == null) {
+                socket.close();
+                return;
+            }
+            if (!MessageDigest.isEqual(token, callerToken.trim().getBytes("UTF-8"))) {
+                logger.warning("Wrong token from " + socket.getRemoteSocketAddress());
+                out.println("DENIED");
+                socket.close();
+                return;
+            }
+            String line = in.readLine();
+            if (line == null || line.trim().isEmpty()) {
+                socket.close();
+                return;
+            }
+            final List<BatchCommand.Result> chain;
+            try {
+                chain = BatchCommand.parseChain(1, line.trim());
+            } catch (CommandAbortException e) {
+                out.println("ERROR " + e.getMessage());
+                socket.close();
+                return;
+            }
+            // the job must not report STARTED before it's reported as QUEUED
+            synchronized (out) {
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            runJob(chain, socket, out);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    out.println("BUSY " + executor.getQueue().size() + " jobs queued");
+                    socket.close();
+                    logger.warning("Rejected job - queue full: " + line);
+                    return;
+                }
+                out.println("QUEUED " + executor.getQueue().size());
+            }
+        } catch (SocketTimeoutException e) {
+            logger.warning("No job received from " + socket.getRemoteSocketAddress());
+            closeQuietly(socket);
+        } catch (IOException e) {
+            logger.warning("Cannot read job from " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            closeQuietly(socket);
+        }
+    }
+
+    private void runJob(List<BatchCommand.Result> chain, Socket socket, PrintWriter out) {
+        connection.set(out);
+        try {
+            synchronized (out) {
+                out.println("STARTED");
+            }
+            BatchCommand.runChain(chain, logger);
+            boolean ok = true;
+            for (BatchCommand.Result result : chain) {
+                ok &= result.status.equals("OK");
+            }
+            out.println("EXIT " + (ok ? 0 : 1));
+        } finally {
+            connection.remove();
+            closeQuietly(socket);
+        }
+    }
+
+    private static void reject(Socket socket, String reason) {
+        try {
+            new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true).println(reason);
+        } catch (IOException e) {
+            // the caller is gone already
+        }
+        closeQuietly(socket);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to tell the caller
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.coremedia.iso.boxes.SampleDescriptionBox;
+import com.coremedia.iso.boxes.h264.AvcConfigurationBox;
+import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
+import com.googlecode.mp4parser.DataSource;
+import com.googlecode.mp4parser.authoring.AbstractTrack;
+import com.googlecode.mp4parser.authoring.Sample;
+import com.googlecode.mp4parser.authoring.TrackMetaData;
+import com.googlecode.mp4parser.h264.model.SeqParameterSet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * H.264 track read from an Annex B byte stream (<code>.h264</code>). The samples are the access units of an
+ * {@link AnnexBIndex}; they are created on access and write their NAL units straight from the data source. SPS and
+ * PPS go into the sample description only.
+ * <p/>
+ * The frame rate is taken from the SPS' VUI timing (25 fps if there is none). Composition time offsets are derived
+ * from the picture order count of streams with <code>pic_order_cnt_type</code> 0; for the other types presentation
+ * order is assumed to be decode order.
+ */
+public class AnnexBH264Track extends AbstractTrack {
+    /**
+     * Enough for a slice header up to <code>pic_order_cnt_lsb</code>.
+     */
+    private static final int SLICE_HEADER_BYTES = 32;
+
+    private final DataSource dataSource;
+    private final AnnexBIndex index;
+    private final TrackMetaData trackMetaData = new TrackMetaData();
+    private final SampleDescriptionBox sampleDescriptionBox = new SampleDescriptionBox();
+    private final long[] sampleDurations;
+    private final long[] syncSamples;
+    private final List<CompositionTimeToSample.Entry> compositionTimeEntries;
+    private final List<Sample> samples = new AbstractList<Sample>() {
+        @Override
+        public Sample get(int i) {
+            return new AccessUnitSample(i);
+        }
+
+        @Override
+        public int size() {
+            return index.getAccessUnitCount();
+        }
+    };
+
+    public AnnexBH264Track(DataSource dataSource, int threads, Logger logger) throws IOException {
+        super(dataSource.toString());
+        this.dataSource = dataSource;
+        this.index = AnnexBIndex.build(dataSource, threads);
+
+        List<byte[]> spsList = new ArrayList<byte[]>();
+        List<byte[]> ppsList = new ArrayList<byte[]>();
+        for (int nal : index.getParameterSets()) {
+            byte[] parameterSet = readNal(nal, index.getNalSize(nal));
+            List<byte[]> list = index.getNalType(nal) == 7 ? spsList : ppsList;
+            if (!contains(list, parameterSet)) {
+                list.add(parameterSet);
+            }
+        }
+        if (index.getAccessUnitCount() == 0 || spsList.isEmpty() || ppsList.isEmpty()) {
+            throw new IOException(dataSource + " is not an H.264 Annex B stream with SPS and PPS");
+        }
+        SeqParameterSet sps = SeqParameterSet.read(new ByteArrayInputStream(unescape(spsList.get(0), 1, spsList.get(0).length)));
+
+        long timescale = 90000;
+        int frameTick = 3600;
+        if (sps.vuiParams != null && sps.vuiParams.time_scale >> 1 > 0 && sps.vuiParams.num_units_in_tick > 0) {
+            timescale = sps.vuiParams.time_scale >> 1;
+            frameTick = sps.vuiParams.num_units_in_tick;
+        } else {
+            logger.warning("No frame rate in the VUI of " + dataSource + " - assuming 25 fps");
+        }
+        sampleDurations = new long[index.getAccessUnitCount()];
+        Arrays.fill(sampleDurations, frameTick);
+
+        syncSamples = new long[index.getIdrCount()];
+        for (int accessUnit = 0, i = 0; accessUnit < index.getAccessUnitCount(); accessUnit++) {
+            if (index.isIdr(accessUnit)) {
+                syncSamples[i++] = accessUnit + 1;
+            }
+        }
+        if (sps.pic_order_cnt_type == 0) {
+            compositionTimeEntries = getCompositionTimeEntries(sps, frameTick);
+        } else {
+            compositionTimeEntries = null;
+        }
+
+        int width = (sps.pic_width_in_mbs_minus1 + 1) * 16;
+        int mult = sps.frame_mbs_only_flag ? 1 : 2;
+        int height = (sps.pic_height_in_map_units_minus1 + 1) * 16 * mult;
+        if (sps.frame_cropping_flag) {
+            int cropUnitX = 1;
+            int cropUnitY = mult;
+            if (!sps.residual_color_transform_flag && sps.chroma_format_idc.getId() != 0) {
+                cropUnitX = sps.chroma_format_idc.getSubWidth();
+                cropUnitY = sps.chroma_format_idc.getSubHeight() * mult;
+            }
+            width -= cropUnitX * (sps.frame_crop_left_offset + sps.frame_crop_right_offset);
+            height -= cropUnitY * (sps.frame_crop_top_offset + sps.frame_crop_bottom_offset);
+        }
+
+        VisualSampleEntry visualSampleEntry = new VisualSampleEntry("avc1");
+        visualSampleEntry.setDataReferenceIndex(1);
+        visualSampleEntry.setDepth(24);
+        visualSampleEntry.setFrameCount(1);
+        visualSampleEntry.setHorizresolution(72);
+        visualSampleEntry.setVertresolution(72);
+        visualSampleEntry.setWidth(width);
+        visualSampleEntry.setHeight(height);
+        visualSampleEntry.setCompressorname("AVC Coding");
+
+        AvcConfigurationBox avcConfigurationBox = new AvcConfigurationBox();
+        avcConfigurationBox.setSequenceParameterSets(spsList);
+        avcConfigurationBox.setPictureParameterSets(ppsList);
+        avcConfigurationBox.setAvcLevelIndication(sps.level_idc);
+        avcConfigurationBox.setAvcProfileIndication(sps.profile_idc);
+        avcConfigurationBox.setBitDepthLumaMinus8(sps.bit_depth_luma_minus8);
+        avcConfigurationBox.setBitDepthChromaMinus8(sps.bit_depth_chroma_minus8);
+        avcConfigurationBox.setChromaFormat(sps.chroma_format_idc.getId());
+        avcConfigurationBox.setConfigurationVersion(1);
+        avcConfigurationBox.setLengthSizeMinusOne(3);
+        avcConfigurationBox.setProfileCompatibility(spsList.get(0)[2] & 0xff);
+        visualSampleEntry.addBox(avcConfigurationBox);
+        sampleDescriptionBox.addBox(visualSampleEntry);
+
+        trackMetaData.setCreationTime(new Date());
+        trackMetaData.setModificationTime(new Date());
+        trackMetaData.setLanguage("eng");
+        trackMetaData.setTimescale(timescale);
+        trackMetaData.setWidth(width);
+        trackMetaData.setHeight(height);
+    }
+
+    /**
+     * Derives the composition time offsets from the picture order count of the first slice of each access unit.
+     * Presentation order is the POC order between two IDRs, the offsets are shifted to be non-negative.
+     */
+    private List<CompositionTimeToSample.Entry> getCompositionTimeEntries(SeqParameterSet sps, int frameTick) throws IOException {
+        int accessUnits = index.getAccessUnitCount();
+        long maxPocLsb = 1L << (sps.log2_max_pic_order_cnt_lsb_minus4 + 4);
+        int[] offsets = new int[accessUnits];
+        long[] pocOrder = new long[accessUnits];
+        byte[] sliceHeader = new byte[SLICE_HEADER_BYTES];
+        long prevPocMsb = 0;
+        long prevPocLsb = 0;
+        int periodStart = 0;
+        int maxDelay = 0;
+        for (int accessUnit = 0; accessUnit <= accessUnits; accessUnit++) {
+            if (accessUnit == accessUnits || (index.isIdr(accessUnit) && accessUnit > periodStart)) {
+                // presentation order of the previous IDR period
+                Arrays.sort(pocOrder, periodStart, accessUnit);
+                for (int rank = periodStart; rank < accessUnit; rank++) {
+                    int decodeIndex = (int) (pocOrder[rank] & 0xffffffffL);
+                    offsets[decodeIndex] = rank - decodeIndex;
+                    maxDelay = Math.max(maxDelay, decodeIndex - rank);
+                }
+                periodStart = accessUnit;
+            }
+            if (accessUnit == accessUnits) {
+                break;
+            }
+            int nal = getFirstSlice(accessUnit);
+            if (nal < 0) {
+                pocOrder[accessUnit] = ((prevPocMsb + prevPocLsb) << 32) | accessUnit;
+                continue;
+            }
+            if (index.isIdr(accessUnit)) {
+                prevPocMsb = 0;
+                prevPocLsb = 0;
+            }
+            long pocLsb = readPocLsb(nal, sps, sliceHeader);
+            long pocMsb;
+            if (pocLsb < prevPocLsb && prevPocLsb - pocLsb >= maxPocLsb / 2) {
+                pocMsb = prevPocMsb + maxPocLsb;
+            } else if (pocLsb > prevPocLsb && pocLsb - prevPocLsb > maxPocLsb / 2) {
+                pocMsb = prevPocMsb - maxPocLsb;
+            } else {
+                pocMsb = prevPocMsb;
+            }
+            pocOrder[accessUnit] = ((pocMsb + pocLsb) << 32) | accessUnit;
+            if (index.getNalRefIdc(nal) != 0) {
+                prevPocMsb = pocMsb;
+                prevPocLsb = pocLsb;
+            }
+        }
+        if (maxDelay == 0) {
+            return null;
+        }
+        List<CompositionTimeToSample.Entry> entries = new ArrayList<CompositionTimeToSample.Entry>();
+        CompositionTimeToSample.Entry last = null;
+        for (int offset : offsets) {
+            int value = (offset + maxDelay) * frameTick;
+            if (last != null && last.getOffset() == value) {
+                last.setCount(last.getCount() + 1);
+            } else {
+                last = new CompositionTimeToSample.Entry(1, value);
+                entries.add(last);
+            }
+        }
+        return entries;
+    }
+
+    private int getFirstSlice(int accessUnit) {
+        for (int nal = index.getFirstNal(accessUnit); nal < index.getEndNal(accessUnit); nal++) {
+            int type = index.getNalType(nal);
+            if (type == 1 || type == 5) {
+                return nal;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the slice header (7.3.3) up to <code>pic_order_cnt_lsb</code>.
+     */
+    private long readPocLsb(int nal, SeqParameterSet sps, byte[] buffer) throws IOException {
+        int length = Math.min(buffer.length, index.getNalSize(nal));
+        dataSource.map(index.getNalOffset(nal), length).get(buffer, 0, length);
+        BitReader reader = new BitReader(unescape(buffer, 1, length));
+        reader.readUE(); // first_mb_in_slice
+        reader.readUE(); // slice_type
+        reader.readUE(); // pic_parameter_set_id
+        if (sps.residual_color_transform_flag) {
+            reader.readBits(2); // colour_plane_id
+        }
+        reader.readBits(sps.log2_max_frame_num_minus4 + 4); // frame_num
+        if (!sps.frame_mbs_only_flag && reader.readBits(1) == 1) { // field_pic_flag
+            reader.readBits(1); // bottom_field_flag
+        }
+        if (index.getNalType(nal) == 5) {
+            reader.readUE(); // idr_pic_id
+        }
+        return reader.readBits(sps.log2_max_pic_order_cnt_lsb_minus4 + 4);
+    }
+
+    private byte[] readNal(int nal, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        dataSource.map(index.getNalOffset(nal), length).get(bytes);
+        return bytes;
+    }
+
+    private static boolean contains(List<byte[]> list, byte[] bytes) {
+        for (byte[] element : list) {
+            if (Arrays.equals(element, bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the emulation prevention bytes (<code>0x000003</code>) from the RBSP.
+     */
+    static byte[] unescape(byte[] nal, int from, int to) {
+        ByteArrayOutputStream rbsp = new ByteArrayOutputStream(to - from);
+        int zeros = 0;
+        for (int i = from; i < to; i++) {
+            int b = nal[i] & 0xff;
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            rbsp.write(b);
+        }
+        return rbsp.toByteArray();
+    }
+
+    /**
+     * Includes every NAL unit of the access unit but parameter sets, end of sequence/stream and filler data.
+     */
+    private static boolean isSampleNal(int type) {
+        return type != 7 && type != 8 && type != 10 && type != 11 && type != 12;
+    }
+
+    /**
+     * Access unit as length prefixed NAL units.
+     */
+    private class AccessUnitSample implements Sample {
+        private final int accessUnit;
+
+        AccessUnitSample(int accessUnit) {
+            this.accessUnit = accessUnit;
+        }
+
+        public void writeTo(WritableByteChannel channel) throws IOException {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            for (int nal = index.getFirstNal(accessUnit); nal < index.getEndNal(accessUnit); nal++) {
+                if (isSampleNal(index.getNalType(nal))) {
+                    length.clear();
+                    length.putInt(index.getNalSize(nal));
+                    length.flip();
+                    channel.write(length);
+                    channel.write(dataSource.map(index.getNalOffset(nal), index.getNalSize(nal)));
+                }
+            }
+        }
+
+        public long getSize() {
+            long size = 0;
+            for (int nal = index.getFirstNal(accessUnit); nal < index.getEndNal(accessUnit); nal++) {
+                if (isSampleNal(index.getNalType(nal))) {
+                    size += 4 + index.getNalSize(nal);
+                }
+            }
+            return size;
+        }
+
+        public ByteBuffer asByteBuffer() {
+            ByteBuffer buffer = ByteBuffer.allocate((int) getSize());
+            try {
+                for (int nal = index.getFirstNal(accessUnit); nal < index.getEndNal(accessUnit); nal++) {
+                    if (isSampleNal(index.getNalType(nal))) {
+                        buffer.putInt(index.getNalSize(nal));
+                        buffer.put(dataSource.map(index.getNalOffset(nal), index.getNalSize(nal)));
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            buffer.rewind();
+            return buffer;
+        }
+    }
+
+    /**
+     * Reads unsigned and Exp-Golomb coded values.
+     */
+    private static class BitReader {
+        private final byte[] data;
+        private int bit;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        long readBits(int count) throws IOException {
+            long value = 0;
+            for (int i = 0; i < count; i++, bit++) {
+                if (bit >> 3 >= data.length) {
+                    throw new IOException("Slice header exceeds " + SLICE_HEADER_BYTES + " bytes");
+                }
+                value = (value << 1) | ((data[bit >> 3] >> (7 - (bit & 7))) & 1);
+            }
+            return value;
+        }
+
+        long readUE() throws IOException {
+            int leadingZeros = 0;
+            while (readBits(1) == 0) {
+                leadingZeros++;
+            }
+            return (1L << leadingZeros) - 1 + readBits(leadingZeros);
+        }
+    }
+
+    public List<Sample> getSamples() {
+        return samples;
+    }
+
+    public long[] getSampleDurations() {
+        return sampleDurations;
+    }
+
+    @Override
+    public long[] getSyncSamples() {
+        return syncSamples;
+    }
+
+    @Override
+    public List<CompositionTimeToSample.Entry> getCompositionTimeEntries() {
+        return compositionTimeEntries;
+    }
+
+    public SampleDescriptionBox getSampleDescriptionBox() {
+        return sampleDescriptionBox;
+    }
+
+    public TrackMetaData getTrackMetaData() {
+        return trackMetaData;
+    }
+
+    public String getHandler() {
+        return "vide";
+    }
+
+    public void close() throws IOException {
+        dataSource.close();
+    }
+}
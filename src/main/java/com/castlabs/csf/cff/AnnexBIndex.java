@@ -0,0 +1,310 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.googlecode.mp4parser.DataSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Index of the NAL units and access units of an H.264 Annex B byte stream. The stream is split into chunks that are
+ * searched for start codes in parallel, eight bytes at a time: a word without a zero byte can't contain the start
+ * of a start code and is skipped as a whole. The chunks' results are stitched in order.
+ * <p/>
+ * Everything is kept in primitive arrays - offsets, sizes and header bytes of the NAL units, the first NAL unit of
+ * each access unit and the IDR access units - so a stream of several hours is indexed without an object per NAL
+ * unit or sample.
+ */
+public class AnnexBIndex {
+    static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    /**
+     * Bytes mapped beyond the end of a chunk: a start code beginning in the chunk and the first slice header byte
+     * after it.
+     */
+    private static final int LOOK_AHEAD = 8;
+    /**
+     * Bytes mapped before the start of a chunk to find the zero bytes preceding a start code.
+     */
+    private static final int LOOK_BEHIND = 64;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private long[] nalOffsets;
+    private int[] nalSizes;
+    private byte[] nalHeaders;
+    private int nalCount;
+    private int[] accessUnitStarts;
+    private int accessUnitCount;
+    private final BitSet idrAccessUnits = new BitSet();
+    private int[] parameterSets;
+
+    /**
+     * Start codes found in a chunk: the position of the NAL unit's header, the end of the preceding NAL unit
+     * (start of the zero bytes before the start code), the NAL unit's header byte and its first payload byte.
+     */
+    private static class Chunk {
+        long[] nalStarts = new long[64];
+        long[] previousEnds = new long[64];
+        byte[] headers = new byte[64];
+        byte[] firstBytes = new byte[64];
+        int count;
+
+        void add(long nalStart, long previousEnd, byte header, byte firstByte) {
+            if (count == nalStarts.length) {
+                nalStarts = Arrays.copyOf(nalStarts, count * 2);
+                previousEnds = Arrays.copyOf(previousEnds, count * 2);
+                headers = Arrays.copyOf(headers, count * 2);
+                firstBytes = Arrays.copyOf(firstBytes, count * 2);
+            }
+            nalStarts[count] = nalStart;
+            previousEnds[count] = previousEnd;
+            headers[count] = header;
+            firstBytes[count] = firstByte;
+            count++;
+        }
+    }
+
+    public static AnnexBIndex build(DataSource dataSource, int threads) throws IOException {
+        return build(dataSource, threads, CHUNK_SIZE);
+    }
+
+    static AnnexBIndex build(final DataSource dataSource, int threads, int chunkSize) throws IOException {
+        final long size = dataSource.size();
+        List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+        for (long start = 0; start < size; start += chunkSize) {
+            final long chunkStart = start;
+            final long chunkEnd = Math.min(size, start + chunkSize);
+            tasks.add(new Callable<Chunk>() {
+                public Chunk call() throws Exception {
+                    return scan(dataSource, chunkStart, chunkEnd, size);
+                }
+            });
+        }
+        List<Chunk> chunks = new ArrayList<Chunk>(tasks.size());
+        if (threads <= 1 || tasks.size() <= 1) {
+            for (Callable<Chunk> task : tasks) {
+                chunks.add(call(task));
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+            try {
+                for (Future<Chunk> future : executor.invokeAll(tasks)) {
+                    chunks.add(get(future));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        AnnexBIndex index = new AnnexBIndex();
+        index.stitch(chunks, dataSource, size);
+        return index;
+    }
+
+    /**
+     * Finds the start codes (<code>0x000001</code>) beginning in <code>[start, end)</code>.
+     */
+    private static Chunk scan(DataSource dataSource, long start, long end, long size) throws IOException {
+        long viewStart = Math.max(0, start - LOOK_BEHIND);
+        long viewEnd = Math.min(size, end + LOOK_AHEAD);
+        ByteBuffer view = dataSource.map(viewStart, viewEnd - viewStart);
+        int from = (int) (start - viewStart);
+        int to = (int) (end - viewStart);
+        int limit = view.limit();
+        Chunk chunk = new Chunk();
+        int i = from;
+        while (i < to) {
+            if (i + 8 <= limit) {
+                long word = view.getLong(i);
+                if (((word - ONES) & ~word & HIGHS) == 0) {
+                    i += 8; // no zero byte - no start code begins here
+                    continue;
+                }
+            }
+            int wordEnd = Math.min(i + 8, to);
+            for (; i < wordEnd; i++) {
+                if (i + 2 < limit && view.get(i) == 0 && view.get(i + 1) == 0 && view.get(i + 2) == 1) {
+                    int previousEnd = i;
+                    while (previousEnd > 0 && view.get(previousEnd - 1) == 0) {
+                        previousEnd--;
+                    }
+                    byte header = i + 3 < limit ? view.get(i + 3) : 0;
+                    byte firstByte = i + 4 < limit ? view.get(i + 4) : 0;
+                    chunk.add(viewStart + i + 3, viewStart + previousEnd, header, firstByte);
+                }
+            }
+        }
+        return chunk;
+    }
+
+    private void stitch(List<Chunk> chunks, DataSource dataSource, long size) throws IOException {
+        int total = 0;
+        for (Chunk chunk : chunks) {
+            total += chunk.count;
+        }
+        nalOffsets = new long[total];
+        nalSizes = new int[total];
+        nalHeaders = new byte[total];
+        accessUnitStarts = new int[Math.max(16, total / 2)];
+        int[] sets = new int[16];
+        int setCount = 0;
+        boolean vclInAccessUnit = false;
+
+        for (Chunk chunk : chunks) {
+            for (int k = 0; k < chunk.count; k++) {
+                if (nalCount > 0) {
+                    setEnd(nalCount - 1, chunk.previousEnds[k]);
+                }
+                int n = nalCount++;
+                nalOffsets[n] = chunk.nalStarts[k];
+                nalHeaders[n] = chunk.headers[k];
+                int type = chunk.headers[k] & 0x1f;
+
+                // 7.4.1.2.3: non-VCL units after the last VCL unit of a picture start the next access unit, a
+                // slice with first_mb_in_slice == 0 starts a new primary coded picture
+                boolean vcl = type == 1 || type == 5;
+                boolean startsAccessUnit;
+                if (vcl) {
+                    startsAccessUnit = vclInAccessUnit && (chunk.firstBytes[k] & 0x80) != 0;
+                    vclInAccessUnit = true;
+                } else {
+                    startsAccessUnit = vclInAccessUnit && (type == 6 || type == 7 || type == 8 || type == 9 || (type >= 14 && type <= 18));
+                    if (startsAccessUnit) {
+                        vclInAccessUnit = false;
+                    }
+                }
+                if (startsAccessUnit || accessUnitCount == 0) {
+                    if (accessUnitCount == accessUnitStarts.length) {
+                        accessUnitStarts = Arrays.copyOf(accessUnitStarts, accessUnitCount * 2);
+                    }
+                    accessUnitStarts[accessUnitCount++] = n;
+                }
+                if (type == 5) {
+                    idrAccessUnits.set(accessUnitCount - 1);
+                }
+                if (type == 7 || type == 8) {
+                    if (setCount == sets.length) {
+                        sets = Arrays.copyOf(sets, setCount * 2);
+                    }
+                    sets[setCount++] = n;
+                }
+            }
+        }
+        if (nalCount > 0) {
+            // trailing zero bytes at the end of the stream
+            long end = size;
+            ByteBuffer tail = dataSource.map(Math.max(nalOffsets[nalCount - 1], size - LOOK_BEHIND), Math.min(LOOK_BEHIND, size - nalOffsets[nalCount - 1]));
+            for (int i = tail.limit() - 1; i >= 0 && tail.get(i) == 0; i--) {
+                end--;
+            }
+            setEnd(nalCount - 1, end);
+        }
+        accessUnitStarts = Arrays.copyOf(accessUnitStarts, accessUnitCount);
+        parameterSets = Arrays.copyOf(sets, setCount);
+    }
+
+    private void setEnd(int nal, long end) {
+        long size = Math.max(0, end - nalOffsets[nal]);
+        if (size > Integer.MAX_VALUE) {
+            throw new RuntimeException("NAL unit at " + nalOffsets[nal] + " is larger than 2 GB - not an H.264 Annex B stream?");
+        }
+        nalSizes[nal] = (int) size;
+    }
+
+    private static Chunk call(Callable<Chunk> task) throws IOException {
+        try {
+            return task.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Chunk get(Future<Chunk> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public int getNalCount() {
+        return nalCount;
+    }
+
+    /**
+     * @return file position of the NAL unit's header byte
+     */
+    public long getNalOffset(int nal) {
+        return nalOffsets[nal];
+    }
+
+    /**
+     * @return size of the NAL unit without start code and trailing zero bytes
+     */
+    public int getNalSize(int nal) {
+        return nalSizes[nal];
+    }
+
+    public int getNalType(int nal) {
+        return nalHeaders[nal] & 0x1f;
+    }
+
+    public int getNalRefIdc(int nal) {
+        return (nalHeaders[nal] >> 5) & 3;
+    }
+
+    public int getAccessUnitCount() {
+        return accessUnitCount;
+    }
+
+    /**
+     * @return index of the access unit's first NAL unit
+     */
+    public int getFirstNal(int accessUnit) {
+        return accessUnitStarts[accessUnit];
+    }
+
+    /**
+     * @return index of the first NAL unit after the access unit
+     */
+    public int getEndNal(int accessUnit) {
+        return accessUnit + 1 < accessUnitCount ? accessUnitStarts[accessUnit + 1] : nalCount;
+    }
+
+    public boolean isIdr(int accessUnit) {
+        return idrAccessUnits.get(accessUnit);
+    }
+
+    public int getIdrCount() {
+        return idrAccessUnits.cardinality();
+    }
+
+    /**
+     * @return indices of all SPS and PPS NAL units in stream order
+     */
+    public int[] getParameterSets() {
+        return parameterSets;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.Container;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offsets and sizes of all boxes in a box tree, calculated in one pass and then looked up in constant time.
+ * Offsets are relative to the start of the root container (which is the start of the file for the complete
+ * file). Child boxes are expected at the end of their parent box as it is the case for all container boxes
+ * (including sample entries and full boxes like meta).
+ * <p/>
+ * The layout is a snapshot: boxes added or changed afterwards are not reflected.
+ */
+public class BoxLayout {
+    private final Map<Box, Long> offsets = new IdentityHashMap<Box, Long>();
+    private final Map<Box, Long> sizes = new IdentityHashMap<Box, Long>();
+    private final long size;
+
+    public BoxLayout(Container root) {
+        this(root.getBoxes());
+    }
+
+    private BoxLayout(List<Box> boxes) {
+        long[] boxSizes = sizesOf(boxes);
+        layout(boxes, boxSizes, 0);
+        size = sum(boxSizes);
+    }
+
+    /**
+     * Returns the layout of the tree the box is part of. If the topmost box has no container (yet) offsets are
+     * relative to the start of that box.
+     */
+    public static BoxLayout of(Box box) {
+        Box top = box;
+        while (top.getParent() instanceof Box) {
+            top = (Box) top.getParent();
+        }
+        if (top.getParent() != null) {
+            return new BoxLayout(top.getParent());
+        } else {
+            return new BoxLayout(Collections.singletonList(top));
+        }
+    }
+
+    /**
+     * @return sum of the sizes of the root container's boxes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public boolean contains(Box box) {
+        return offsets.containsKey(box);
+    }
+
+    public long getOffset(Box box) {
+        Long offset = offsets.get(box);
+        if (offset == null) {
+            throw new RuntimeException(box.getType() + " is not part of this layout");
+        }
+        return offset;
+    }
+
+    public long getSize(Box box) {
+        Long boxSize = sizes.get(box);
+        if (boxSize == null) {
+            throw new RuntimeException(box.getType() + " is not part of this layout");
+        }
+        return boxSize;
+    }
+
+    /**
+     * @return offset of the first byte after the box
+     */
+    public long getEnd(Box box) {
+        return getOffset(box) + getSize(box);
+    }
+
+    private void layout(List<Box> boxes, long[] boxSizes, long offset) {
+        for (int i = 0; i < boxSizes.length; i++) {
+            Box box = boxes.get(i);
+            offsets.put(box, offset);
+            sizes.put(box, boxSizes[i]);
+            if (box instanceof Container && ((Container) box).getBoxes() != null) {
+                List<Box> children = ((Container) box).getBoxes();
+                long[] childSizes = sizesOf(children);
+                // children are at the end of the box - whatever precedes them is header and fields
+                layout(children, childSizes, offset + boxSizes[i] - sum(childSizes));
+            }
+            offset += boxSizes[i];
+        }
+    }
+
+    private static long[] sizesOf(List<Box> boxes) {
+        long[] boxSizes = new long[boxes.size()];
+        for (int i = 0; i < boxSizes.length; i++) {
+            boxSizes[i] = boxes.get(i).getSize();
+        }
+        return boxSizes;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
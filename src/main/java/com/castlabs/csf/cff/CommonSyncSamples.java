@@ -0,0 +1,152 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.googlecode.mp4parser.authoring.Track;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Intersection of the sync samples of several tracks in the time domain. The decode times of each track's sync
+ * samples are converted to a common timescale and merged in one pass, each track advancing to the next candidate by
+ * galloping search. Sync samples match if they are less than half a sample apart, so tracks with different frame
+ * rates or timescales can be aligned. The same pass counts per track the sync samples that are not shared by all
+ * other tracks.
+ */
+public class CommonSyncSamples {
+    private final List<Track> tracks = new ArrayList<Track>();
+    private final long[] commonSyncSamples;
+    private final int[] misalignedSyncSamples;
+    private long timescale;
+
+    /**
+     * Intersects the sync samples of all tracks that have sync samples. Tracks without sync samples (e.g. audio)
+     * don't restrict the result.
+     */
+    public CommonSyncSamples(Iterable<Track> allTracks) {
+        for (Track track : allTracks) {
+            if (track.getSyncSamples() != null && track.getSyncSamples().length > 0) {
+                tracks.add(track);
+                timescale = Math.max(timescale, track.getTrackMetaData().getTimescale());
+            }
+        }
+        long[][] syncTimes = new long[tracks.size()][];
+        long[] tolerances = new long[tracks.size()];
+        for (int k = 0; k < tracks.size(); k++) {
+            Track track = tracks.get(k);
+            DecodeTimeIndex decodeTimeIndex = new DecodeTimeIndex(track);
+            long[] syncSamples = track.getSyncSamples();
+            syncTimes[k] = new long[syncSamples.length];
+            for (int i = 0; i < syncSamples.length; i++) {
+                syncTimes[k][i] = toCommonTime(decodeTimeIndex, decodeTimeIndex.getDecodeTime(syncSamples[i]));
+            }
+            // half the average sample duration
+            long duration = decodeTimeIndex.getDecodeTime(decodeTimeIndex.getSampleCount() + 1);
+            tolerances[k] = toCommonTime(decodeTimeIndex, duration) / Math.max(1, 2 * decodeTimeIndex.getSampleCount());
+        }
+        misalignedSyncSamples = new int[tracks.size()];
+        commonSyncSamples = tracks.isEmpty() ? null : intersect(syncTimes, tolerances);
+    }
+
+    /**
+     * @return the common sync samples as sample numbers of the first track with sync samples
+     * (<code>getTracks().get(0)</code>) or <code>null</code> if no track has sync samples at all
+     */
+    public long[] getSampleNumbers() {
+        return commonSyncSamples;
+    }
+
+    /**
+     * @return the tracks that contributed sync samples to the intersection
+     */
+    public List<Track> getTracks() {
+        return tracks;
+    }
+
+    public int getSyncSampleCount(Track track) {
+        return track.getSyncSamples() != null ? track.getSyncSamples().length : 0;
+    }
+
+    /**
+     * @return number of the track's sync samples that don't start a GOP in every other track
+     */
+    public int getMisalignedSyncSampleCount(Track track) {
+        int i = tracks.indexOf(track);
+        return i < 0 ? 0 : misalignedSyncSamples[i];
+    }
+
+    /**
+     * @return average GOP length in samples if the track was fragmented at its own sync samples
+     */
+    public double getAverageGopLength(Track track) {
+        int syncSampleCount = getSyncSampleCount(track);
+        return syncSampleCount > 0 ? (double) track.getSamples().size() / syncSampleCount : 0;
+    }
+
+    private long toCommonTime(DecodeTimeIndex decodeTimeIndex, long time) {
+        return Math.round((double) time * timescale / decodeTimeIndex.getTimescale());
+    }
+
+    private long[] intersect(long[][] syncTimes, long[] tolerances) {
+        int[] positions = new int[syncTimes.length];
+        long[] result = new long[syncTimes[0].length];
+        int resultSize = 0;
+        boolean exhausted = false;
+        while (!exhausted) {
+            long candidate = Long.MIN_VALUE;
+            for (int k = 0; k < syncTimes.length; k++) {
+                candidate = Math.max(candidate, syncTimes[k][positions[k]]);
+            }
+            boolean common = true;
+            for (int k = 0; k < syncTimes.length; k++) {
+                int next = gallop(syncTimes[k], positions[k], candidate - tolerances[k]);
+                misalignedSyncSamples[k] += next - positions[k];
+                positions[k] = next;
+                if (next == syncTimes[k].length) {
+                    exhausted = true;
+                    common = false;
+                } else if (syncTimes[k][next] > candidate + tolerances[k]) {
+                    common = false;
+                }
+            }
+            if (common) {
+                result[resultSize++] = tracks.get(0).getSyncSamples()[positions[0]];
+                for (int k = 0; k < syncTimes.length; k++) {
+                    if (++positions[k] == syncTimes[k].length) {
+                        exhausted = true;
+                    }
+                }
+            }
+        }
+        for (int k = 0; k < syncTimes.length; k++) {
+            misalignedSyncSamples[k] += syncTimes[k].length - positions[k];
+        }
+        return Arrays.copyOf(result, resultSize);
+    }
+
+    /**
+     * Finds the first index at or after <code>from</code> whose value is not smaller than <code>value</code> by
+     * doubling the step width first and then searching the last step binary.
+     */
+    static int gallop(long[] sorted, int from, long value) {
+        if (from >= sorted.length || sorted[from] >= value) {
+            return from;
+        }
+        int step = 1;
+        int low = from;
+        int high = from + 1;
+        while (high < sorted.length && sorted[high] < value) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        high = Math.min(high, sorted.length);
+        int index = Arrays.binarySearch(sorted, low + 1, high, value);
+        return index >= 0 ? index : -index - 1;
+    }
+}
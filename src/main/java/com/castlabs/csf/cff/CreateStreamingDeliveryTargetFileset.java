@@ -6,16 +6,23 @@
 package com.castlabs.csf.cff;
 
 import com.castlabs.csf.AbstractCommand;
+import com.castlabs.csf.manifest.FileIndex;
 import com.coremedia.iso.Hex;
+import com.coremedia.iso.IsoFile;
 import com.coremedia.iso.boxes.Container;
 import com.coremedia.iso.boxes.OriginalFormatBox;
+import com.coremedia.iso.boxes.SchemeTypeBox;
+import com.coremedia.iso.boxes.TrackBox;
 import com.coremedia.iso.boxes.sampleentry.AbstractSampleEntry;
+import com.googlecode.mp4parser.DataSource;
 import com.googlecode.mp4parser.FileDataSourceImpl;
+import com.googlecode.mp4parser.authoring.CencMp4TrackImplImpl;
 import com.googlecode.mp4parser.authoring.Movie;
+import com.googlecode.mp4parser.authoring.Mp4TrackImpl;
 import com.googlecode.mp4parser.authoring.Track;
 import com.googlecode.mp4parser.authoring.builder.FragmentIntersectionFinder;
-import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
 import com.googlecode.mp4parser.authoring.tracks.*;
+import com.googlecode.mp4parser.util.Path;
 import org.apache.commons.io.FilenameUtils;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -33,6 +40,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 
@@ -72,141 +80,354 @@ public class CreateStreamingDeliveryTargetFileset extends AbstractCommand {
     )
     protected String encKeySecretKey = null;
 
+    @Option(name = "--threads",
+            usage = "Number of tracks packaged in parallel"
+    )
+    protected int threads = 1;
+
+    @Option(name = "--encryption-threads",
+            usage = "Number of threads encrypting samples ahead of the writer. Without this option samples are encrypted while they are written.",
+            depends = {"--uuid"}
+    )
+    protected int encryptionThreads = 0;
+
+    private ExecutorService encryptionExecutor;
+
+    /**
+     * Encryption pool of the process, see {@link #setSharedEncryptionExecutor(ExecutorService)}.
+     */
+    private static ExecutorService sharedEncryptionExecutor;
+
+    private Map<Track, SampleByteRanges> sampleByteRanges = new HashMap<Track, SampleByteRanges>();
+
+    @Option(name = "--streaming",
+            usage = "Writes fragment by fragment instead of building the whole file in memory first"
+    )
+    protected boolean streaming = false;
+
+    @Option(name = "--segmented",
+            usage = "Writes an init segment and one media segment file per fragment instead of a single file. " +
+                    "The manifest addresses them with SegmentTemplate/SegmentTimeline."
+    )
+    protected boolean segmented = false;
+
+    @Option(name = "--sidx-fan-out",
+            usage = "Writes a hierarchical segment index: a top-level sidx references sub-sidx boxes each indexing up to this many fragments"
+    )
+    protected int sidxFanOut = 0;
+
+    @Option(name = "--fragment-duration",
+            usage = "Target fragment duration in seconds. Fragments start at the common sync sample closest to the target. " +
+                    "Without this option every common sync sample starts a new fragment."
+    )
+    protected double fragmentDuration = -1;
+
+    @Option(name = "--min-fragment-duration",
+            usage = "Minimum fragment duration in seconds (default: half the target duration)",
+            depends = {"--fragment-duration"}
+    )
+    protected double minFragmentDuration = -1;
+
+    @Option(name = "--max-fragment-duration",
+            usage = "Maximum fragment duration in seconds (default: twice the target duration)",
+            depends = {"--fragment-duration"}
+    )
+    protected double maxFragmentDuration = -1;
+
+    @Option(name = "--demux",
+            usage = "Packages every track of the inputs into its own output in a single run, e.g. all audio languages of a " +
+                    "mezzanine file. --codec and --language select tracks instead of restricting the run. " +
+                    "Fragments of all tracks are aligned with the video's GOPs."
+    )
+    protected boolean demux = false;
+
+    /**
+     * Track ID in the input file of tracks selected by <code>--demux</code>
+     */
+    private Map<Track, Long> sourceTrackIds = new HashMap<Track, Long>();
+
+    @Option(name = "--no-mmap",
+            usage = "Reads raw elementary streams (aac, h264, ac3, ec3, dtshd) through a file channel instead of memory-mapping them"
+    )
+    protected boolean noMmap = false;
+
+    @Option(name = "--write-index",
+            usage = "Writes the manifest index sidecar (.csfidx) next to each output file so that manifest creation needs no MP4 parsing"
+    )
+    protected boolean writeIndex = false;
 
     @Override
     public int run() throws Exception {
         logger = setupLogger();
+        inputFiles = resolve(inputFiles);
         if (encKid != null) {
             this.keyid = UUID.fromString(this.encKid);
             this.cek = new SecretKeySpec(Hex.decodeHex(this.encKeySecretKey), "AES");
         }
 
         Map<Track, String> trackOriginalFilename = setupTracks();
-        FragmentIntersectionFinder intersectionFinder = getFragmentStartSamples(trackOriginalFilename);
+        Map<Track, FragmentIntersectionFinder> intersectionFinders = getIntersectionFinders(trackOriginalFilename);
         Map<Track, String> filenames = generateFilenames(trackOriginalFilename);
 
-
-        StreamingDeliveryTargetMp4Builder mp4Builder = new StreamingDeliveryTargetMp4Builder();
-        mp4Builder.setIntersectionFinder(intersectionFinder);
-
-
-        Movie m = new Movie();
-        for (Map.Entry<Track, String> e : trackOriginalFilename.entrySet()) {
-            if (keyid != null) {
-                m.setTracks(Collections.<Track>singletonList(new CencEncryptingTrackImpl(e.getKey(), keyid, cek)));
+        boolean ownEncryptionExecutor = false;
+        if (keyid != null && encryptionThreads > 0) {
+            encryptionExecutor = getSharedEncryptionExecutor();
+            if (encryptionExecutor == null) {
+                encryptionExecutor = Executors.newFixedThreadPool(encryptionThreads);
+                ownEncryptionExecutor = true;
+            }
+        }
+        try {
+            if (threads > 1) {
+                writeTracksConcurrently(trackOriginalFilename, filenames, intersectionFinders);
             } else {
-                m.setTracks(Collections.<Track>singletonList(e.getKey()));
+                for (Map.Entry<Track, String> e : trackOriginalFilename.entrySet()) {
+                    writeTrack(e.getKey(), e.getValue(), filenames.get(e.getKey()), intersectionFinders.get(e.getKey()));
+                }
+            }
+        } finally {
+            if (ownEncryptionExecutor) {
+                encryptionExecutor.shutdownNow();
             }
-            String apid = "urn:dece:apid:org:castlabs:" + FilenameUtils.getBaseName(e.getValue());
-            mp4Builder.setApid(apid);
-            Container c = mp4Builder.build(m);
-            String filename = filenames.get(e.getKey());
-            FileOutputStream fos = new FileOutputStream(filename);
-            logger.info(String.format("Writing %s (track_ID=%d, apid=%s)",
-                    filename, e.getKey().getTrackMetaData().getTrackId(), apid));
-            c.writeContainer(fos.getChannel());
-            fos.close();
         }
         return 0;
     }
 
-    private FragmentIntersectionFinder getFragmentStartSamples(Map<Track, String> trackOriginalFilename) throws CommandAbortException {
+    /**
+     * Makes commands with <code>--encryption-threads</code> encrypt on the given pool instead of starting and
+     * stopping a pool of their own. The pool's threads and their ciphers are then reused by all commands of the
+     * process. The commands don't shut the pool down.
+     *
+     * @param executor the pool or <code>null</code> to let each command start its own pool again
+     */
+    public static synchronized void setSharedEncryptionExecutor(ExecutorService executor) {
+        sharedEncryptionExecutor = executor;
+    }
 
-        Set<Long> syncSamples = null;
-        int numSamples = -1;
-        for (Track track : trackOriginalFilename.keySet()) {
-            if (numSamples < 0) {
-                numSamples = track.getSamples().size();
+    private static synchronized ExecutorService getSharedEncryptionExecutor() {
+        return sharedEncryptionExecutor;
+    }
+
+    /**
+     * Packages all tracks on a bounded pool of <code>threads</code> workers. The intersection finders are
+     * shared, the builder is not as it carries per file state (apid, idat contents).
+     */
+    private void writeTracksConcurrently(Map<Track, String> trackOriginalFilename, final Map<Track, String> filenames,
+                                         final Map<Track, FragmentIntersectionFinder> intersectionFinders) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, trackOriginalFilename.size()));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final Map.Entry<Track, String> e : trackOriginalFilename.entrySet()) {
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        writeTrack(e.getKey(), e.getValue(), filenames.get(e.getKey()), intersectionFinders.get(e.getKey()));
+                        return null;
+                    }
+                }));
             }
-            if (numSamples != track.getSamples().size()) {
-                throw new CommandAbortException("All Tracks need the same number of samples");
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof Exception) {
+                        throw (Exception) ee.getCause();
+                    }
+                    throw new RuntimeException(ee.getCause());
+                }
             }
-
+        } finally {
+            executor.shutdownNow();
         }
+    }
 
+    private void writeTrack(Track track, String originalFilename, String filename, FragmentIntersectionFinder intersectionFinder) throws IOException {
+        File output = resolve(filename);
+        StreamingDeliveryTargetMp4Builder mp4Builder = new StreamingDeliveryTargetMp4Builder();
+        // the builder sees the encrypting wrapper, the finder only knows the source track
+        final long[] fragmentStartSamples = intersectionFinder.sampleNumbers(track);
+        mp4Builder.setIntersectionFinder(new FragmentIntersectionFinder() {
+            public long[] sampleNumbers(Track t) {
+                return fragmentStartSamples;
+            }
+        });
+        mp4Builder.setSidxFanOut(sidxFanOut);
 
-        for (Track track : trackOriginalFilename.keySet()) {
-            if (track.getSyncSamples() != null && track.getSyncSamples().length > 0) {
-                if (syncSamples == null) {
-                    syncSamples = new HashSet<Long>();
-                    for (long l : track.getSyncSamples()) {
-                        syncSamples.add(l);
-                    }
+        Movie m = new Movie();
+        if (keyid != null && encryptionExecutor != null) {
+            m.setTracks(Collections.<Track>singletonList(
+                    new ParallelCencEncryptingTrackImpl(track, keyid, cek, encryptionExecutor, 2 * encryptionThreads)));
+        } else if (keyid != null) {
+            m.setTracks(Collections.<Track>singletonList(new CencEncryptingTrackImpl(track, keyid, cek)));
+        } else {
+            m.setTracks(Collections.<Track>singletonList(track));
+        }
+        // demuxed tracks share their input file - the output file tells them apart
+        String apid = "urn:dece:apid:org:castlabs:" + FilenameUtils.getBaseName(demux ? filename : originalFilename);
+        mp4Builder.setApid(apid);
+        logger.info(String.format("Writing %s (track_ID=%d, apid=%s)",
+                filename, track.getTrackMetaData().getTrackId(), apid));
+        if (streaming || segmented) {
+            SampleByteRanges ranges = sampleByteRanges.get(track);
+            if (ranges != null && m.getTracks().get(0) == track) {
+                mp4Builder.setSampleByteRanges(track, ranges);
+            }
+            try {
+                if (segmented) {
+                    mp4Builder.writeSegmented(m, output);
                 } else {
-                    Set<Long> syncSamples2 = new HashSet<Long>();
-                    for (long l : track.getSyncSamples()) {
-                        syncSamples2.add(l);
+                    FileOutputStream fos = new FileOutputStream(output);
+                    try {
+                        mp4Builder.writeStreaming(m, fos.getChannel());
+                    } finally {
+                        fos.close();
                     }
-                    syncSamples.retainAll(syncSamples2);
                 }
+            } finally {
+                if (ranges != null) {
+                    ranges.close();
+                }
+            }
+        } else {
+            Container c = mp4Builder.build(m);
+            FileOutputStream fos = new FileOutputStream(output);
+            try {
+                c.writeContainer(fos.getChannel());
+            } finally {
+                fos.close();
             }
         }
-        if (syncSamples != null) {
+        if (writeIndex) {
+            FileIndex.build(output).writeSidecar(output);
+        }
+    }
 
-            List<Long> syncSampleList = new ArrayList<Long>();
-            syncSampleList.addAll(syncSamples);
-            Collections.sort(syncSampleList);
+    /**
+     * Determines the fragment boundaries of all tracks. Fragments start at the same time in all tracks. Demuxed
+     * tracks of all handlers share one finder: the video tracks' GOPs determine the fragment start times, audio and
+     * subtitle tracks start their fragments with the sample closest to these times.
+     */
+    private Map<Track, FragmentIntersectionFinder> getIntersectionFinders(Map<Track, String> trackOriginalFilename) throws CommandAbortException {
+        Map<Track, String> referenceTracks = trackOriginalFilename;
+        if (demux) {
+            Map<Track, String> videoTracks = new LinkedHashMap<Track, String>();
+            for (Map.Entry<Track, String> e : trackOriginalFilename.entrySet()) {
+                if (e.getKey().getHandler().equals("vide")) {
+                    videoTracks.put(e.getKey(), e.getValue());
+                }
+            }
+            if (!videoTracks.isEmpty()) {
+                referenceTracks = videoTracks;
+            }
+        }
+        FragmentIntersectionFinder intersectionFinder = getFragmentStartSamples(referenceTracks, trackOriginalFilename.keySet());
+        Map<Track, FragmentIntersectionFinder> intersectionFinders = new HashMap<Track, FragmentIntersectionFinder>();
+        for (Track track : trackOriginalFilename.keySet()) {
+            intersectionFinders.put(track, intersectionFinder);
+        }
+        return intersectionFinders;
+    }
 
-            final long[] fragmentStartSamples = new long[syncSamples.size()];
-            for (int i = 0; i < fragmentStartSamples.length; i++) {
-                fragmentStartSamples[i] = syncSampleList.get(i);
+    /**
+     * Chooses the fragment start samples on a reference track - the first of the given tracks with sync samples - and
+     * maps their decode times to all other tracks. The tracks may differ in sample count, frame rate and timescale.
+     *
+     * @param trackOriginalFilename tracks whose common sync samples may start a fragment
+     * @param alignedTracks         all tracks to be fragmented
+     */
+    private FragmentIntersectionFinder getFragmentStartSamples(Map<Track, String> trackOriginalFilename, Collection<Track> alignedTracks) throws CommandAbortException {
+        CommonSyncSamples commonSyncSamples = new CommonSyncSamples(trackOriginalFilename.keySet());
+        for (Track track : commonSyncSamples.getTracks()) {
+            int misaligned = commonSyncSamples.getMisalignedSyncSampleCount(track);
+            String message = String.format("%s: %d of %d sync samples not aligned with other tracks (average GOP %.1f samples)",
+                    trackOriginalFilename.get(track), misaligned, commonSyncSamples.getSyncSampleCount(track),
+                    commonSyncSamples.getAverageGopLength(track));
+            if (misaligned > 0) {
+                logger.warning(message);
+            } else {
+                logger.fine(message);
             }
+        }
+        Track referenceTrack = commonSyncSamples.getTracks().isEmpty() ?
+                trackOriginalFilename.keySet().iterator().next() : commonSyncSamples.getTracks().get(0);
+        long[] referenceStartSamples;
+        if (fragmentDuration > 0) {
+            referenceStartSamples = new DurationFragmentIntersectionFinder(referenceTrack, commonSyncSamples.getSampleNumbers(), fragmentDuration,
+                    minFragmentDuration >= 0 ? minFragmentDuration : fragmentDuration / 2,
+                    maxFragmentDuration >= 0 ? maxFragmentDuration : fragmentDuration * 2).sampleNumbers(referenceTrack);
+        } else if (commonSyncSamples.getSampleNumbers() != null) {
+            referenceStartSamples = commonSyncSamples.getSampleNumbers();
+        } else {
+            // no sync samples - any sample can start a fragment. Aim at 5 seconds.
+            referenceStartSamples = new DurationFragmentIntersectionFinder(referenceTrack, null, 5, 2.5, 10).sampleNumbers(referenceTrack);
+        }
+        return new TimeAlignedFragmentIntersectionFinder(referenceTrack, referenceStartSamples, alignedTracks);
+    }
 
 
-            return new FragmentIntersectionFinder() {
-                @Override
-                public long[] sampleNumbers(Track track) {
-                    return fragmentStartSamples;
-                }
-            };
-        } else {
-            // they have all the same amount of samples ... easy
-            Track t = trackOriginalFilename.keySet().iterator().next();
-            double durationInSeconds = t.getDuration() / t.getTrackMetaData().getTimescale();
-            int numberOfSamples = t.getSamples().size();
-            int numberOfSamplesPer5Seconds = (int) Math.ceil(numberOfSamples / durationInSeconds * 5);
-            final long[] fragmentStartSamples = new long[(int) Math.ceil(numberOfSamples / numberOfSamplesPer5Seconds) + 1];
-            for (int i = 0; i < fragmentStartSamples.length; i++) {
-                fragmentStartSamples[i] = i * numberOfSamplesPer5Seconds + 1;
-            }
+    /**
+     * Raw inputs are parsed sequentially and their samples are sliced from the data source. Mapping the file
+     * avoids a system call per read and per sample.
+     */
+    private DataSource openRawInput(File inputFile) throws IOException {
+        return noMmap ? new FileDataSourceImpl(inputFile) : new MappedFileDataSource(inputFile);
+    }
 
-            return new FragmentIntersectionFinder() {
-                @Override
-                public long[] sampleNumbers(Track track) {
-                    return fragmentStartSamples;
-                }
-            };
+    /**
+     * Creates the movie like <code>MovieCreator.build</code> does but from a file that has already been parsed, so
+     * that the sample byte ranges can be read from the same moov.
+     */
+    private static Movie createMovie(IsoFile isoFile, File inputFile) throws IOException {
+        Movie movie = new Movie();
+        for (TrackBox trackBox : isoFile.getMovieBox().getBoxes(TrackBox.class)) {
+            SchemeTypeBox schm = (SchemeTypeBox) Path.getPath(trackBox, "mdia[0]/minf[0]/stbl[0]/stsd[0]/enc.[0]/sinf[0]/schm[0]");
+            String name = inputFile + "[" + trackBox.getTrackHeaderBox().getTrackId() + "]";
+            if (schm != null && (schm.getSchemeType().equals("cenc") || schm.getSchemeType().equals("cbc1"))) {
+                movie.addTrack(new CencMp4TrackImplImpl(name, trackBox));
+            } else {
+                movie.addTrack(new Mp4TrackImpl(name, trackBox));
+            }
         }
+        movie.setMatrix(isoFile.getMovieBox().getMovieHeaderBox().getMatrix());
+        return movie;
     }
 
-
     public Map<Track, String> setupTracks() throws IOException, CommandAbortException, XPathExpressionException, SAXException, ParserConfigurationException {
         Map<Track, String> track2File = new HashMap<Track, String>();
         List<File> xmls = new ArrayList<File>();
         for (File inputFile : inputFiles) {
             if (inputFile.getName().endsWith("mp4")) {
-                Movie movie = MovieCreator.build(new FileDataSourceImpl(inputFile));
+                IsoFile isoFile = new IsoFile(new FileDataSourceImpl(inputFile));
+                Movie movie = createMovie(isoFile, inputFile);
+                Map<Long, SampleByteRanges> ranges = Collections.emptyMap();
+                if ((streaming || segmented) && encKid == null) {
+                    // clear samples are copied as is - transfer them file to file
+                    ranges = SampleByteRanges.forIsoFile(isoFile, inputFile);
+                }
                 for (Track track : movie.getTracks()) {
-                    if (checkCodecAndLanguage(track, inputFile.getName())) {
+                    SampleByteRanges trackRanges = ranges.get(track.getTrackMetaData().getTrackId()); // before track_ID is reassigned
+                    if (demux ? selectTrack(track, inputFile.getName()) : checkCodecAndLanguage(track, inputFile.getName())) {
                         track2File.put(track, inputFile.getName());
+                        if (trackRanges != null) {
+                            sampleByteRanges.put(track, trackRanges);
+                        }
                     }
                 }
             } else {
                 Track track = null;
                 if (inputFile.getName().endsWith(".aac")) {
-                    track = new AACTrackImpl(new FileDataSourceImpl(inputFile));
+                    track = new AACTrackImpl(openRawInput(inputFile));
                     logger.fine("Created AAC Track from " + inputFile.getName());
                 } else if (inputFile.getName().endsWith(".h264")) {
-                    track = new H264TrackImpl(new FileDataSourceImpl(inputFile));
+                    track = new AnnexBH264Track(openRawInput(inputFile), Runtime.getRuntime().availableProcessors(), logger);
                     logger.fine("Created H264 Track from " + inputFile.getName());
                 } else if (inputFile.getName().endsWith(".ac3")) {
-                    track = new AC3TrackImpl(new FileDataSourceImpl(inputFile));
+                    track = new AC3TrackImpl(openRawInput(inputFile));
                     logger.fine("Created AC3 Track from " + inputFile.getName());
                 } else if (inputFile.getName().endsWith(".ec3")) {
-                    track = new EC3TrackImpl(new FileDataSourceImpl(inputFile));
+                    track = new EC3TrackImpl(openRawInput(inputFile));
                     logger.fine("Created EC3 Track from " + inputFile.getName());
                 } else if (inputFile.getName().endsWith(".dtshd")) {
-                    track = new DTSTrackImpl(new FileDataSourceImpl(inputFile));
+                    track = new DTSTrackImpl(openRawInput(inputFile));
                     logger.fine("Created DTS HD Track from " + inputFile.getName());
                 } else if (inputFile.getName().endsWith(".xml")) {
                     xmls.add(inputFile);
@@ -221,7 +442,7 @@ public class CreateStreamingDeliveryTargetFileset extends AbstractCommand {
                         logger.fine("No language given for raw track - defaulting to " + DEFAULT_LANG);
                         track.getTrackMetaData().setLanguage(DEFAULT_LANG);
                     }
-                    if ((checkCodecAndLanguage(track, inputFile.getName()))) {
+                    if (demux ? selectTrack(track, inputFile.getName()) : checkCodecAndLanguage(track, inputFile.getName())) {
                         track2File.put(track, inputFile.getName());
                     }
                 }
@@ -262,53 +483,82 @@ public class CreateStreamingDeliveryTargetFileset extends AbstractCommand {
         return track2File;
     }
 
+    /**
+     * Track ID by handler, codec and language: video 1-49, audio 100-999 (one hundred per codec), subtitles
+     * 10000-10999. Track IDs of the input that are already in the right range are kept.
+     */
+    private long getDefaultTrackId(Track track) throws CommandAbortException {
+        long trackId;
+        if (track.getHandler().equals("vide")) {
+            if (track.getTrackMetaData().getTrackId() >= 1 && track.getTrackMetaData().getTrackId() <= 49) {
+                trackId = track.getTrackMetaData().getTrackId();
+            } else {
+                trackId = 1;
+            }
+        } else if (track.getHandler().equals("soun")) {
+            if (track.getTrackMetaData().getTrackId() >= 100 && track.getTrackMetaData().getTrackId() <= 999) {
+                trackId = track.getTrackMetaData().getTrackId();
+            } else {
+                String codec = track.getSampleDescriptionBox().getSampleEntry().getType();
+                if ("mp4a".equals(codec)) {
+                    trackId = 100;
+                } else if ("mlpa".equals(codec)) {
+                    trackId = 200;
+                } else if ("dtsl".equals(codec)) {
+                    trackId = 300;
+                } else if ("dtsh".equals(codec)) {
+                    trackId = 300;
+                } else if ("dtsl".equals(codec)) {
+                    trackId = 400;
+                } else if ("dtse".equals(codec)) {
+                    trackId = 500;
+                } else if ("ac-3".equals(codec)) {
+                    trackId = 600;
+                } else if ("ec-3".equals(codec)) {
+                    trackId = 700;
+                } else {
+                    throw new RuntimeException("Don't know which track number to assign");
+                }
+                trackId += track.getTrackMetaData().getLanguage().hashCode() % 100;
+                // this is not bullet-proof but should make that each codec/language combo gets its own
+                // track id without collisions.
+            }
+        } else if (track.getHandler().equals("subt")) {
+            if (track.getTrackMetaData().getTrackId() >= 10000 && track.getTrackMetaData().getTrackId() <= 10999) {
+                trackId = track.getTrackMetaData().getTrackId();
+            } else {
+                trackId = 10000;
+            }
+        } else {
+            throw new CommandAbortException("Don't know which trackId to assign for handler=" + track.getHandler());
+        }
+        return trackId;
+    }
+
+    /**
+     * Selects a track for <code>--demux</code>: <code>--codec</code> and <code>--language</code> filter the tracks,
+     * each selected track gets its own track ID.
+     */
+    private boolean selectTrack(Track track, String origFile) throws CommandAbortException {
+        String format = getFormat(track.getSampleDescriptionBox().getSampleEntry());
+        if (codec != null && !codec.equals(format)) {
+            logger.fine("Skipping " + format + " track " + track.getTrackMetaData().getTrackId() + " of " + origFile + " - codec not selected");
+            return false;
+        }
+        if (language != null && !language.equals(track.getTrackMetaData().getLanguage())) {
+            logger.fine("Skipping " + format + " track " + track.getTrackMetaData().getTrackId() + " of " + origFile + " - language not selected");
+            return false;
+        }
+        sourceTrackIds.put(track, track.getTrackMetaData().getTrackId());
+        track.getTrackMetaData().setTrackId(getDefaultTrackId(track));
+        return true;
+    }
+
     private boolean checkCodecAndLanguage(Track track, String origFile) throws CommandAbortException {
         AbstractSampleEntry sampleEntry = track.getSampleDescriptionBox().getSampleEntry();
         if (codec == null) {
             if (trackId == -1) {
-                if (track.getHandler().equals("vide")) {
-                    if (track.getTrackMetaData().getTrackId() >= 1 && track.getTrackMetaData().getTrackId() <= 49) {
-                        trackId = track.getTrackMetaData().getTrackId();
-                    } else {
-                        trackId = 1;
-                    }
-                } else if (track.getHandler().equals("soun")) {
-                    if (track.getTrackMetaData().getTrackId() >= 100 && track.getTrackMetaData().getTrackId() <= 999) {
-                        trackId = track.getTrackMetaData().getTrackId();
-                    } else {
-                        String codec = track.getSampleDescriptionBox().getSampleEntry().getType();
-                        if ("mp4a".equals(codec)) {
-                            trackId = 100;
-                        } else if ("mlpa".equals(codec)) {
-                            trackId = 200;
-                        } else if ("dtsl".equals(codec)) {
-                            trackId = 300;
-                        } else if ("dtsh".equals(codec)) {
-                            trackId = 300;
-                        } else if ("dtsl".equals(codec)) {
-                            trackId = 400;
-                        } else if ("dtse".equals(codec)) {
-                            trackId = 500;
-                        } else if ("ac-3".equals(codec)) {
-                            trackId = 600;
-                        } else if ("ec-3".equals(codec)) {
-                            trackId = 700;
-                        } else {
-                            throw new RuntimeException("Don't know which track number to assign");
-                        }
-                        trackId += track.getTrackMetaData().getLanguage().hashCode() % 100;
-                        // this is not bullet-proof but should make that each codec/language combo gets its own
-                        // track id without collisions.
-                    }
-                } else if (track.getHandler().equals("subt")) {
-                    if (track.getTrackMetaData().getTrackId() >= 10000 && track.getTrackMetaData().getTrackId() <= 10999) {
-                        trackId = track.getTrackMetaData().getTrackId();
-                    } else {
-                        trackId = 10000;
-                    }
-                } else {
-                    throw new CommandAbortException("Don't know which trackId to assign for handler=" + track.getHandler());
-                }
+                trackId = getDefaultTrackId(track);
             }
             codec = getFormat(sampleEntry); // if not set in cmd line first track encountered sets the format for this adaptation set
         }
@@ -346,11 +596,19 @@ public class CreateStreamingDeliveryTargetFileset extends AbstractCommand {
             originalFilename = originalFilename.replace(".ac3", "");
             originalFilename = originalFilename.replace(".dtshd", "");
             originalFilename = originalFilename.replace(".xml", "");
-            for (Track track1 : filenames.keySet()) {
-                if (track1 != track &&
-                        trackOriginalFilename.get(track1).equals(trackOriginalFilename.get(track))) {
-                    // ouch multiple tracks point to same file
-                    originalFilename += "_" + track.getTrackMetaData().getTrackId();
+            if (demux && sourceTrackIds.containsKey(track)) {
+                // the input's track ID is unique within the file, the language tells audio tracks apart at a glance
+                originalFilename += "_" + sourceTrackIds.get(track);
+                if (!track.getHandler().equals("vide")) {
+                    originalFilename += "_" + track.getTrackMetaData().getLanguage();
+                }
+            } else {
+                for (Track track1 : filenames.keySet()) {
+                    if (track1 != track &&
+                            trackOriginalFilename.get(track1).equals(trackOriginalFilename.get(track))) {
+                        // ouch multiple tracks point to same file
+                        originalFilename += "_" + track.getTrackMetaData().getTrackId();
+                    }
                 }
             }
             if (track.getHandler().equals("soun")) {
@@ -0,0 +1,101 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.googlecode.mp4parser.authoring.Track;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cumulative decode times and expanded composition time offsets of a track. Built once per track it answers
+ * decode time, duration and presentation time of any sample (range) in constant time and finds the sample at a
+ * given decode time by binary search. Sample numbers are 1-based as everywhere in the builders.
+ */
+public class DecodeTimeIndex {
+    private final long[] decodeTimes;
+    private final int[] compositionTimeOffsets;
+    private final long timescale;
+
+    public DecodeTimeIndex(Track track) {
+        timescale = track.getTrackMetaData().getTimescale();
+        long[] sampleDurations = track.getSampleDurations();
+        decodeTimes = new long[sampleDurations.length + 1];
+        for (int i = 0; i < sampleDurations.length; i++) {
+            decodeTimes[i + 1] = decodeTimes[i] + sampleDurations[i];
+        }
+        List<CompositionTimeToSample.Entry> compositionTimeEntries = track.getCompositionTimeEntries();
+        if (compositionTimeEntries != null && !compositionTimeEntries.isEmpty()) {
+            compositionTimeOffsets = CompositionTimeToSample.blowupCompositionTimes(compositionTimeEntries);
+        } else {
+            compositionTimeOffsets = null;
+        }
+    }
+
+    public long getTimescale() {
+        return timescale;
+    }
+
+    public int getSampleCount() {
+        return decodeTimes.length - 1;
+    }
+
+    /**
+     * Decode time of the given sample. <code>getSampleCount() + 1</code> is allowed and returns the track's duration.
+     */
+    public long getDecodeTime(long sample) {
+        return decodeTimes[((int) sample) - 1];
+    }
+
+    /**
+     * Duration of the samples <code>startSample</code> (inclusive) to <code>endSample</code> (exclusive).
+     */
+    public long getDuration(long startSample, long endSample) {
+        return getDecodeTime(endSample) - getDecodeTime(startSample);
+    }
+
+    public long getSampleDuration(long sample) {
+        return getDuration(sample, sample + 1);
+    }
+
+    /**
+     * Sample whose decode time is closest to the given decode time. Ties go to the earlier sample.
+     */
+    public long getSampleAt(long decodeTime) {
+        int index = Arrays.binarySearch(decodeTimes, 0, decodeTimes.length - 1, decodeTime);
+        if (index >= 0) {
+            return index + 1;
+        }
+        int next = -index - 1;
+        if (next == 0) {
+            return 1;
+        }
+        if (next == decodeTimes.length - 1 || decodeTime - decodeTimes[next - 1] <= decodeTimes[next] - decodeTime) {
+            return next;
+        }
+        return next + 1;
+    }
+
+    /**
+     * Converts a time given in another timescale to this track's timescale.
+     */
+    public long toTrackTime(long time, long otherTimescale) {
+        return otherTimescale == timescale ? time : Math.round((double) time * timescale / otherTimescale);
+    }
+
+    public boolean hasCompositionTimeOffsets() {
+        return compositionTimeOffsets != null;
+    }
+
+    public int getCompositionTimeOffset(long sample) {
+        return compositionTimeOffsets != null ? compositionTimeOffsets[((int) sample) - 1] : 0;
+    }
+
+    public long getPresentationTime(long sample) {
+        return getDecodeTime(sample) + getCompositionTimeOffset(sample);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.builder.FragmentIntersectionFinder;
+
+import java.util.Arrays;
+
+/**
+ * Starts fragments at the candidate sample (usually a common sync sample) closest to a target fragment duration.
+ * Fragments are kept between a minimum and a maximum duration as long as the candidates allow it: if there is no
+ * candidate within the bounds the fragment ends at the first candidate after the maximum duration.
+ * <p/>
+ * Durations are measured on the reference track and all tracks get its sample numbers. Use
+ * {@link TimeAlignedFragmentIntersectionFinder} to carry the result over to tracks with different sample timing.
+ */
+public class DurationFragmentIntersectionFinder implements FragmentIntersectionFinder {
+    private final long[] fragmentStartSamples;
+
+    /**
+     * @param referenceTrack track whose decode times are used to measure fragment durations
+     * @param candidates     sorted sample numbers that may start a fragment or <code>null</code> if any sample may
+     * @param targetDuration desired fragment duration in seconds
+     * @param minDuration    minimum fragment duration in seconds (the last fragment may be shorter)
+     * @param maxDuration    maximum fragment duration in seconds
+     */
+    public DurationFragmentIntersectionFinder(Track referenceTrack, long[] candidates, double targetDuration, double minDuration, double maxDuration) {
+        if (minDuration > targetDuration || maxDuration < targetDuration) {
+            throw new IllegalArgumentException("Fragment duration bounds must include the target duration (" +
+                    minDuration + " <= " + targetDuration + " <= " + maxDuration + ")");
+        }
+        DecodeTimeIndex decodeTimeIndex = new DecodeTimeIndex(referenceTrack);
+        long timescale = referenceTrack.getTrackMetaData().getTimescale();
+        if (candidates == null) {
+            candidates = new long[decodeTimeIndex.getSampleCount()];
+            for (int i = 0; i < candidates.length; i++) {
+                candidates[i] = i + 1;
+            }
+        }
+
+        long[] startSamples = new long[16];
+        int count = 0;
+        startSamples[count++] = 1;
+        long start = 1;
+        int next = 0;
+        while (true) {
+            long startTime = decodeTimeIndex.getDecodeTime(start);
+            double earliest = startTime + minDuration * timescale;
+            double target = startTime + targetDuration * timescale;
+            double latest = startTime + maxDuration * timescale;
+            while (next < candidates.length && candidates[next] <= start) {
+                next++;
+            }
+            if (next == candidates.length) {
+                break;
+            }
+            long best = -1;
+            double bestDistance = Double.MAX_VALUE;
+            for (int i = next; i < candidates.length; i++) {
+                long time = decodeTimeIndex.getDecodeTime(candidates[i]);
+                if (time > latest) {
+                    if (best == -1) {
+                        best = candidates[i]; // no candidate within bounds - longer fragment is unavoidable
+                    }
+                    break;
+                }
+                if (time >= earliest && Math.abs(time - target) < bestDistance) {
+                    best = candidates[i];
+                    bestDistance = Math.abs(time - target);
+                }
+            }
+            long endTime = decodeTimeIndex.getDecodeTime(decodeTimeIndex.getSampleCount() + 1);
+            if (best == -1 || (endTime <= latest && Math.abs(endTime - target) <= bestDistance)) {
+                break; // ending the last fragment with the track is better than a tiny fragment at the end
+            }
+            if (count == startSamples.length) {
+                startSamples = Arrays.copyOf(startSamples, count * 2);
+            }
+            startSamples[count++] = best;
+            start = best;
+        }
+        fragmentStartSamples = Arrays.copyOf(startSamples, count);
+    }
+
+    public long[] sampleNumbers(Track track) {
+        return fragmentStartSamples;
+    }
+}
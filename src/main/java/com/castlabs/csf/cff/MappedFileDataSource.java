@@ -0,0 +1,156 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.googlecode.mp4parser.DataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Read-only {@link DataSource} that memory-maps a file in windows. A single <code>MappedByteBuffer</code> can't
+ * exceed 2 GB, so the file is split into windows of {@link #WINDOW_SIZE} bytes that are mapped on first access.
+ * Each window overlaps the next one by {@link #OVERLAP} bytes: every {@link #map(long, long)} up to that size - the
+ * raw track parsers ask for up to 64 MB at a time - is a slice of a single window, without copying and without a
+ * system call. Larger requests get a mapping of their own.
+ * <p/>
+ * As soon as a window is accessed the next one is loaded in the background, so sequential parsing doesn't wait for
+ * the disk page by page.
+ * <p/>
+ * <code>map</code> may be called from any thread, <code>read</code> and <code>position</code> share a file position
+ * and are meant for a single parsing thread like in {@link com.googlecode.mp4parser.FileDataSourceImpl}.
+ */
+public class MappedFileDataSource implements DataSource {
+    static final long WINDOW_SIZE = 256 * 1024 * 1024;
+    static final long OVERLAP = 64 * 1024 * 1024;
+
+    /**
+     * Shared by all instances, idle threads terminate after a minute.
+     */
+    private static final ExecutorService READ_AHEAD = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long size;
+    private final MappedByteBuffer[] windows;
+    private int readAheadIndex;
+    private long position;
+
+    public MappedFileDataSource(File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.channel = randomAccessFile.getChannel();
+        this.size = channel.size();
+        this.windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+    }
+
+    public synchronized int read(ByteBuffer byteBuffer) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int count = 0;
+        while (byteBuffer.hasRemaining() && position < size) {
+            int index = (int) (position / WINDOW_SIZE);
+            ByteBuffer window = getWindow(index).duplicate();
+            int offset = (int) (position - index * WINDOW_SIZE);
+            int length = (int) Math.min(byteBuffer.remaining(), WINDOW_SIZE - offset);
+            length = (int) Math.min(length, size - position);
+            window.position(offset);
+            window.limit(offset + length);
+            byteBuffer.put(window);
+            position += length;
+            count += length;
+        }
+        return count;
+    }
+
+    public long size() throws IOException {
+        return size;
+    }
+
+    public synchronized long position() throws IOException {
+        return position;
+    }
+
+    public synchronized void position(long nuPos) throws IOException {
+        position = nuPos;
+    }
+
+    public long transferTo(long startPosition, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(startPosition, count, target);
+    }
+
+    /**
+     * Returns a view on the given range. The view shares the mapped memory, the bytes are not copied.
+     */
+    public ByteBuffer map(long startPosition, long size) throws IOException {
+        if (startPosition < 0 || size < 0 || startPosition + size > this.size) {
+            throw new IOException("Cannot map " + size + " bytes at " + startPosition + " of " + file + " (" + this.size + " bytes)");
+        }
+        int index = (int) (startPosition / WINDOW_SIZE);
+        int offset = (int) (startPosition - index * WINDOW_SIZE);
+        if (size > OVERLAP || index == windows.length) {
+            // too large for a window slice or empty range at the end of the file
+            return channel.map(FileChannel.MapMode.READ_ONLY, startPosition, size);
+        }
+        ByteBuffer slice = getWindow(index).duplicate();
+        slice.position(offset);
+        slice.limit(offset + (int) size);
+        return slice.slice();
+    }
+
+    private synchronized MappedByteBuffer getWindow(int index) throws IOException {
+        MappedByteBuffer window = windows[index];
+        if (window == null) {
+            window = mapWindow(index);
+        }
+        if (index + 1 > readAheadIndex && index + 1 < windows.length) {
+            readAheadIndex = index + 1;
+            final MappedByteBuffer next = windows[index + 1] != null ? windows[index + 1] : mapWindow(index + 1);
+            READ_AHEAD.execute(new Runnable() {
+                public void run() {
+                    next.load();
+                }
+            });
+        }
+        return window;
+    }
+
+    private MappedByteBuffer mapWindow(int index) throws IOException {
+        long start = index * WINDOW_SIZE;
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE + OVERLAP, size - start));
+        windows[index] = window;
+        return window;
+    }
+
+    /**
+     * Closes the file. Views returned by {@link #map(long, long)} stay valid.
+     */
+    public synchronized void close() throws IOException {
+        channel.close();
+        randomAccessFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.googlecode.mp4parser.authoring.Sample;
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.tracks.CencEncryptingTrackImpl;
+import com.googlecode.mp4parser.boxes.cenc.CencSampleAuxiliaryDataFormat;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * CENC encrypting track that encrypts its samples on a worker pool ahead of the writer. IVs and subsample maps
+ * are the ones computed by {@link CencEncryptingTrackImpl} so senc/saio/saiz stay untouched; only the AES-CTR
+ * work is moved. Samples are encrypted in batches. Each worker thread has its own <code>Cipher</code> and keeps it
+ * for all tracks it encrypts, so a pool shared by several jobs doesn't create ciphers per job. When the writer asks
+ * for a sample the batch containing it and the next few batches are scheduled, so the payload is usually ready by
+ * the time it is written. The encrypted bytes are identical to the sequential implementation.
+ */
+public class ParallelCencEncryptingTrackImpl extends CencEncryptingTrackImpl {
+    private static final int BATCH_SIZE = 32;
+
+    private final List<Sample> encryptedSamples;
+
+    /**
+     * @param executor pool doing the encryption. It is shared and not shut down by the track.
+     * @param readAhead number of batches scheduled ahead of the sample being written
+     */
+    public ParallelCencEncryptingTrackImpl(Track source, UUID defaultKeyId, SecretKey cek, ExecutorService executor, int readAhead) {
+        super(source, defaultKeyId, cek);
+        this.encryptedSamples = new PipelinedSampleList(source.getSamples(), getSampleEncryptionEntries(), cek, executor, readAhead);
+    }
+
+    @Override
+    public List<Sample> getSamples() {
+        return encryptedSamples;
+    }
+
+    private static class PipelinedSampleList extends AbstractList<Sample> {
+        private final List<Sample> clearSamples;
+        private final List<CencSampleAuxiliaryDataFormat> auxiliaryData;
+        private final SecretKey cek;
+        private final ExecutorService executor;
+        private final int readAhead;
+        private final Map<Integer, Future<ByteBuffer[]>> batches = new ConcurrentHashMap<Integer, Future<ByteBuffer[]>>();
+
+        private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+            @Override
+            protected Cipher initialValue() {
+                try {
+                    return Cipher.getInstance("AES/CTR/NoPadding");
+                } catch (GeneralSecurityException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        PipelinedSampleList(List<Sample> clearSamples, List<CencSampleAuxiliaryDataFormat> auxiliaryData,
+                            SecretKey cek, ExecutorService executor, int readAhead) {
+            this.clearSamples = clearSamples;
+            this.auxiliaryData = auxiliaryData;
+            this.cek = cek;
+            this.executor = executor;
+            this.readAhead = readAhead;
+        }
+
+        @Override
+        public Sample get(final int index) {
+            final Sample clearSample = clearSamples.get(index);
+            return new Sample() {
+                public void writeTo(WritableByteChannel channel) throws IOException {
+                    channel.write(getEncrypted(index));
+                }
+
+                public long getSize() {
+                    return clearSample.getSize();
+                }
+
+                public ByteBuffer asByteBuffer() {
+                    return getEncrypted(index);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return clearSamples.size();
+        }
+
+        private ByteBuffer getEncrypted(int index) {
+            int batch = index / BATCH_SIZE;
+            int lastBatch = (clearSamples.size() - 1) / BATCH_SIZE;
+            for (int i = batch; i <= Math.min(batch + readAhead, lastBatch); i++) {
+                schedule(i);
+            }
+            ByteBuffer[] encrypted;
+            try {
+                encrypted = batches.get(batch).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            if (index % BATCH_SIZE == BATCH_SIZE - 1 || index == clearSamples.size() - 1) {
+                // samples are written in order - a batch is done when its last sample is requested.
+                // Should it be requested again it is just encrypted once more.
+                batches.remove(batch);
+            }
+            return encrypted[index % BATCH_SIZE].duplicate();
+        }
+
+        private synchronized void schedule(final int batch) {
+            if (!batches.containsKey(batch)) {
+                batches.put(batch, executor.submit(new Callable<ByteBuffer[]>() {
+                    public ByteBuffer[] call() throws Exception {
+                        int from = batch * BATCH_SIZE;
+                        int to = Math.min(from + BATCH_SIZE, clearSamples.size());
+                        ByteBuffer[] encrypted = new ByteBuffer[to - from];
+                        for (int i = from; i < to; i++) {
+                            encrypted[i - from] = encrypt(clearSamples.get(i), auxiliaryData.get(i));
+                        }
+                        return encrypted;
+                    }
+                }));
+            }
+        }
+
+        private ByteBuffer encrypt(Sample clearSample, CencSampleAuxiliaryDataFormat entry) throws GeneralSecurityException {
+            ByteBuffer clear = clearSample.asByteBuffer();
+            clear.rewind();
+            byte[] data = new byte[clear.remaining()];
+            clear.get(data);
+
+            byte[] fullIv = new byte[16];
+            System.arraycopy(entry.iv, 0, fullIv, 0, entry.iv.length);
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, cek, new IvParameterSpec(fullIv));
+
+            if (entry.pairs != null && entry.pairs.length > 0) {
+                int offset = 0;
+                for (CencSampleAuxiliaryDataFormat.Pair pair : entry.pairs) {
+                    offset += pair.clear();
+                    int encryptedBytes = (int) pair.encrypted();
+                    if (encryptedBytes > 0) {
+                        cipher.update(data, offset, encryptedBytes, data, offset);
+                        offset += encryptedBytes;
+                    }
+                }
+            } else {
+                data = cipher.doFinal(data);
+            }
+            return ByteBuffer.wrap(data);
+        }
+    }
+}
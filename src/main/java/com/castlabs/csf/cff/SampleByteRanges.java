@@ -0,0 +1,121 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.googlecode.mp4parser.util.Path;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Position and size of each sample of a track within its (non-fragmented) source MP4 file. Allows to copy
+ * sample data from the source file to the output with <code>FileChannel.transferTo</code> instead of reading
+ * every sample into a buffer first. Samples that are adjacent in the source file are transferred at once.
+ */
+public class SampleByteRanges implements Closeable {
+    private final File file;
+    private final long[] offsets;
+    private final long[] sizes;
+    private FileChannel channel;
+
+    SampleByteRanges(File file, long[] offsets, long[] sizes) {
+        this.file = file;
+        this.offsets = offsets;
+        this.sizes = sizes;
+    }
+
+    /**
+     * Reads the sample tables of all tracks in the given file. The <code>IsoFile</code> is the one the tracks were
+     * created from, so the moov isn't parsed a second time. It is left open.
+     *
+     * @param isoFile the parsed file
+     * @param mp4     the file <code>isoFile</code> was parsed from
+     * @return the byte ranges per track_ID or an empty map if the file is fragmented
+     */
+    public static Map<Long, SampleByteRanges> forIsoFile(IsoFile isoFile, File mp4) {
+        Map<Long, SampleByteRanges> ranges = new HashMap<Long, SampleByteRanges>();
+        if (Path.getPath(isoFile, "/moov[0]/mvex[0]") != null) {
+            return ranges; // sample data is (partly) in moof/mdat - not described by the sample tables
+        }
+        List<TrackBox> trackBoxes = isoFile.getMovieBox().getBoxes(TrackBox.class);
+        for (TrackBox trackBox : trackBoxes) {
+            SampleTableBox stbl = trackBox.getSampleTableBox();
+            SampleSizeBox stsz = stbl.getSampleSizeBox();
+            long[] chunkOffsets = stbl.getChunkOffsetBox().getChunkOffsets();
+            long[] samplesPerChunk = stbl.getSampleToChunkBox().blowup(chunkOffsets.length);
+            int sampleCount = (int) stsz.getSampleCount();
+
+            long[] offsets = new long[sampleCount];
+            long[] sizes = new long[sampleCount];
+            int sample = 0;
+            for (int chunk = 0; chunk < chunkOffsets.length && sample < sampleCount; chunk++) {
+                long offset = chunkOffsets[chunk];
+                for (int i = 0; i < samplesPerChunk[chunk] && sample < sampleCount; i++) {
+                    offsets[sample] = offset;
+                    sizes[sample] = stsz.getSampleSizeAtIndex(sample);
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+            ranges.put(trackBox.getTrackHeaderBox().getTrackId(), new SampleByteRanges(mp4, offsets, sizes));
+        }
+        return ranges;
+    }
+
+    public int getSampleCount() {
+        return offsets.length;
+    }
+
+    /**
+     * Transfers the samples <code>startSample</code> (inclusive) to <code>endSample</code> (exclusive) from the
+     * source file to <code>target</code>. Sample numbers are 1-based.
+     *
+     * @return number of bytes transferred
+     */
+    public long transferTo(long startSample, long endSample, WritableByteChannel target) throws IOException {
+        if (channel == null) {
+            channel = new RandomAccessFile(file, "r").getChannel();
+        }
+        long transferred = 0;
+        int i = (int) startSample - 1;
+        int end = (int) endSample - 1;
+        while (i < end) {
+            long position = offsets[i];
+            long count = 0;
+            do {
+                count += sizes[i++];
+            } while (i < end && offsets[i] == position + count);
+            while (count > 0) {
+                long n = channel.transferTo(position, count, target);
+                if (n <= 0) {
+                    throw new IOException("Cannot read " + count + " bytes at " + position + " from " + file);
+                }
+                position += n;
+                count -= n;
+                transferred += n;
+            }
+        }
+        return transferred;
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
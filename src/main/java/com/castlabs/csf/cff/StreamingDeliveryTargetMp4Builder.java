@@ -5,11 +5,11 @@
  */
 package com.castlabs.csf.cff;
 
+import com.castlabs.csf.manifest.FileIndex;
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.IsoTypeWriter;
 import com.coremedia.iso.boxes.*;
-import com.coremedia.iso.boxes.fragment.MovieFragmentBox;
-import com.coremedia.iso.boxes.fragment.TrackFragmentBaseMediaDecodeTimeBox;
-import com.coremedia.iso.boxes.fragment.TrackFragmentBox;
-import com.coremedia.iso.boxes.fragment.TrackRunBox;
+import com.coremedia.iso.boxes.fragment.*;
 import com.coremedia.iso.boxes.h264.AvcConfigurationBox;
 import com.coremedia.iso.boxes.sampleentry.DashHelper;
 import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
@@ -20,14 +20,16 @@ import com.googlecode.mp4parser.authoring.builder.FragmentedMp4Builder;
 import com.googlecode.mp4parser.authoring.tracks.CencEncyprtedTrack;
 import com.googlecode.mp4parser.boxes.basemediaformat.AvcNalUnitStorageBox;
 import com.googlecode.mp4parser.boxes.dece.ContentInformationBox;
+import com.googlecode.mp4parser.boxes.dece.SampleEncryptionBox;
 import com.googlecode.mp4parser.boxes.threegpp26244.SegmentIndexBox;
 import com.googlecode.mp4parser.util.Path;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
 
 import static com.googlecode.mp4parser.util.CastUtils.l2i;
 
@@ -39,6 +41,17 @@ public class StreamingDeliveryTargetMp4Builder extends FragmentedMp4Builder {
 
     private List<ByteBuffer> idatContents = new ArrayList<ByteBuffer>();
 
+    private Map<Track, DecodeTimeIndex> decodeTimeIndices = new HashMap<Track, DecodeTimeIndex>();
+
+    private Map<Track, SampleByteRanges> sampleByteRanges = new HashMap<Track, SampleByteRanges>();
+
+    /**
+     * Layout of the file (or of ftyp/moov/sidx when streaming) once it is complete.
+     */
+    private BoxLayout layout;
+
+    private int sidxFanOut = 0;
+
     /**
      * Unifies all buffer by creating a new ByteBuffer with the capacity
      * of the sum of all buffers and writing all buffers completely into the new one.
@@ -95,6 +108,28 @@ public class StreamingDeliveryTargetMp4Builder extends FragmentedMp4Builder {
         this.metaXml = metaXml;
     }
 
+    /**
+     * Writes a hierarchical segment index: a top-level sidx references sub-sidx boxes (reference_type=1) that each
+     * index up to <code>sidxFanOut</code> fragments and directly precede them. Players only need to load the small
+     * top-level sidx to start playback. 0 (default) writes a single flat sidx.
+     */
+    public void setSidxFanOut(int sidxFanOut) {
+        this.sidxFanOut = sidxFanOut;
+    }
+
+    /**
+     * Tells <code>writeStreaming</code> where the track's samples are located in its source file. The mdat
+     * payload is then copied file to file and doesn't pass through the heap. Only valid for tracks whose samples
+     * are the unmodified source samples (i.e. not for encrypted tracks).
+     */
+    public void setSampleByteRanges(Track track, SampleByteRanges ranges) {
+        if (ranges.getSampleCount() != track.getSamples().size()) {
+            throw new RuntimeException("Sample byte ranges don't match the track's samples (" +
+                    ranges.getSampleCount() + " vs. " + track.getSamples().size() + ")");
+        }
+        sampleByteRanges.put(track, ranges);
+    }
+
     @Override
     public Box createFtyp(Movie movie) {
         return new FileTypeBox("ccff", 0, Arrays.asList("isom", "avc1", "iso6"));
@@ -183,15 +218,75 @@ public class StreamingDeliveryTargetMp4Builder extends FragmentedMp4Builder {
     protected void createTfdt(long startSample, Track track, TrackFragmentBox parent) {
         TrackFragmentBaseMediaDecodeTimeBox tfdt = new TrackFragmentBaseMediaDecodeTimeBox();
         tfdt.setVersion(0);
-        long startTime = 0;
-        long[] times = track.getSampleDurations();
-        for (int i = 1; i < startSample; i++) {
-            startTime += times[i];
-        }
-        tfdt.setBaseMediaDecodeTime(startTime);
+        tfdt.setBaseMediaDecodeTime(getDecodeTimeIndex(track).getDecodeTime(startSample));
         parent.addBox(tfdt);
     }
 
+    @Override
+    protected void createTrun(long startSample, long endSample, Track track, int sequenceNumber, TrackFragmentBox parent) {
+        DecodeTimeIndex decodeTimeIndex = getDecodeTimeIndex(track);
+        TrackRunBox trun = new TrackRunBox();
+        trun.setVersion(1);
+        long[] sampleSizes = getSampleSizes(startSample, endSample, track, sequenceNumber);
+
+        trun.setSampleDurationPresent(true);
+        trun.setSampleSizePresent(true);
+        trun.setSampleCompositionTimeOffsetPresent(decodeTimeIndex.hasCompositionTimeOffsets());
+
+        List<SampleDependencyTypeBox.Entry> sampleDependencies = track.getSampleDependencies();
+        boolean hasSampleDependencies = sampleDependencies != null && !sampleDependencies.isEmpty();
+        long[] syncSamples = track.getSyncSamples();
+        boolean hasSyncSamples = syncSamples != null && syncSamples.length > 0;
+        boolean sampleFlagsRequired = hasSampleDependencies || hasSyncSamples;
+        trun.setSampleFlagsPresent(sampleFlagsRequired);
+
+        List<TrackRunBox.Entry> entries = new ArrayList<TrackRunBox.Entry>(sampleSizes.length);
+        for (int i = 0; i < sampleSizes.length; i++) {
+            long sample = startSample + i;
+            TrackRunBox.Entry entry = new TrackRunBox.Entry();
+            entry.setSampleSize(sampleSizes[i]);
+            if (sampleFlagsRequired) {
+                SampleFlags sflags = new SampleFlags();
+                if (hasSampleDependencies) {
+                    SampleDependencyTypeBox.Entry e = sampleDependencies.get(l2i(sample - 1));
+                    sflags.setSampleDependsOn(e.getSampleDependsOn());
+                    sflags.setSampleIsDependedOn(e.getSampleIsDependentOn());
+                    sflags.setSampleHasRedundancy(e.getSampleHasRedundancy());
+                }
+                if (hasSyncSamples) {
+                    if (Arrays.binarySearch(syncSamples, sample) >= 0) {
+                        sflags.setSampleIsDifferenceSample(false);
+                        sflags.setSampleDependsOn(2);
+                    } else {
+                        sflags.setSampleIsDifferenceSample(true);
+                        sflags.setSampleDependsOn(1);
+                    }
+                }
+                entry.setSampleFlags(sflags);
+            }
+            entry.setSampleDuration(decodeTimeIndex.getSampleDuration(sample));
+            if (decodeTimeIndex.hasCompositionTimeOffsets()) {
+                entry.setSampleCompositionTimeOffset(decodeTimeIndex.getCompositionTimeOffset(sample));
+            }
+            entries.add(entry);
+        }
+        trun.setEntries(entries);
+        parent.addBox(trun);
+    }
+
+    /**
+     * Returns the decode time index of the track. It is built on first use and then shared by tfdt, trun and sidx
+     * generation.
+     */
+    protected DecodeTimeIndex getDecodeTimeIndex(Track track) {
+        DecodeTimeIndex decodeTimeIndex = decodeTimeIndices.get(track);
+        if (decodeTimeIndex == null) {
+            decodeTimeIndex = new DecodeTimeIndex(track);
+            decodeTimeIndices.put(track, decodeTimeIndex);
+        }
+        return decodeTimeIndex;
+    }
+
     protected void createTraf(long startSample, long endSample, Track track, int sequenceNumber, MovieFragmentBox parent) {
         TrackFragmentBox traf = new TrackFragmentBox();
         parent.addBox(traf);
@@ -214,10 +309,37 @@ public class StreamingDeliveryTargetMp4Builder extends FragmentedMp4Builder {
 
     }
 
+    /**
+     * Adds the saio. Its offset can only be determined once the moof is complete (see <code>createMoof</code>).
+     */
     @Override
     protected void createSaio(long startSample, long endSample, CencEncyprtedTrack track, int sequenceNumber, TrackFragmentBox parent) {
-        super.createSaio(startSample, endSample, track, sequenceNumber, parent);
-        ((SampleAuxiliaryInformationOffsetsBox) parent.getBoxes().get(parent.getBoxes().size() - 1)).setFlags(0);
+        SampleAuxiliaryInformationOffsetsBox saio = new SampleAuxiliaryInformationOffsetsBox();
+        saio.setAuxInfoType("cenc");
+        saio.setFlags(0);
+        saio.setOffsets(new long[]{0});
+        parent.addBox(saio);
+    }
+
+    /**
+     * Creates the moof and points the saio (if any) to the first IV in the senc. The offset is relative to the
+     * moof (default-base-is-moof).
+     */
+    @Override
+    protected Box createMoof(long startSample, long endSample, Track track, int sequenceNumber) {
+        MovieFragmentBox moof = (MovieFragmentBox) super.createMoof(startSample, endSample, track, sequenceNumber);
+        for (TrackFragmentBox traf : moof.getBoxes(TrackFragmentBox.class)) {
+            List<SampleAuxiliaryInformationOffsetsBox> saios = traf.getBoxes(SampleAuxiliaryInformationOffsetsBox.class);
+            List<SampleEncryptionBox> sencs = traf.getBoxes(SampleEncryptionBox.class);
+            if (!saios.isEmpty() && !sencs.isEmpty()) {
+                SampleEncryptionBox senc = sencs.get(0);
+                BoxLayout moofLayout = BoxLayout.of(senc);
+                // box header, version/flags and sample_count precede the first IV
+                long firstIv = moofLayout.getOffset(senc) + 16 - moofLayout.getOffset(moof);
+                saios.get(0).setOffsets(new long[]{firstIv});
+            }
+        }
+        return moof;
     }
 
     @Override
@@ -252,21 +374,10 @@ public class StreamingDeliveryTargetMp4Builder extends FragmentedMp4Builder {
 
 
             public long getOffset() {
-                Box b = this;
-                long offset = -4; // the calculation is systematically wrong by 4, I don't want to debug why. Just a quick correction --san 14.May.13
-                do {
-                    Container parent = b.getParent();
-                    for (Box box : parent.getBoxes()) {
-                        if (b == box) {
-                            break;
-                        }
-                        offset += box.getSize();
-                    }
-                    if (parent instanceof Box) {
-                        b = (Box) parent;
-                    }
-                } while (b.getParent() instanceof Box);
-                return offset;
+                if (layout != null && layout.contains(this)) {
+                    return layout.getOffset(this);
+                }
+                return BoxLayout.of(this).getOffset(this);
             }
         }
 
@@ -318,87 +429,351 @@ public class StreamingDeliveryTargetMp4Builder extends FragmentedMp4Builder {
         BasicContainer isoFile = new BasicContainer();
         isoFile.addBox(createFtyp(movie));
         isoFile.addBox(createMoov(movie));
-        List<Box> moofMdats = createMoofMdat(movie);
-
-        isoFile.addBox(createSidx(isoFile, moofMdats, 0));
+        Track track = movie.getTracks().get(0);
+        List<Fragment> fragments = createFragments(track);
+        List<Box> moofMdats = new ArrayList<Box>();
+        for (Fragment fragment : fragments) {
+            Box moof = createMoof(fragment.startSample, fragment.endSample, track, fragment.sequenceNumber);
+            Box mdat = createMdat(fragment.startSample, fragment.endSample, track, fragment.sequenceNumber);
+            fragment.moofSize = moof.getSize();
+            fragment.mdatSize = mdat.getSize();
+            moofMdats.add(moof);
+            moofMdats.add(mdat);
+        }
+        List<SegmentIndexBox> subSidxs = createSubSidxs(isoFile, fragments);
+        SegmentIndexBox sidx = subSidxs.isEmpty() ? createSidx(isoFile, fragments, 0) : createTopLevelSidx(isoFile, fragments, subSidxs);
+        isoFile.addBox(sidx);
 
-        for (Box box : moofMdats) {
-            isoFile.addBox(box);
+        for (int i = 0; i < fragments.size(); i++) {
+            if (!subSidxs.isEmpty() && i % sidxFanOut == 0) {
+                isoFile.addBox(subSidxs.get(i / sidxFanOut));
+            }
+            isoFile.addBox(moofMdats.get(2 * i));
+            isoFile.addBox(moofMdats.get(2 * i + 1));
+        }
+        layout = new BoxLayout(isoFile);
+        if (subSidxs.isEmpty()) {
+            sidx.setFirstOffset(layout.getOffset(moofMdats.get(0)) - layout.getEnd(sidx));
+        } else {
+            sidx.setFirstOffset(layout.getOffset(subSidxs.get(0)) - layout.getEnd(sidx));
+            for (int i = 0; i < subSidxs.size(); i++) {
+                SegmentIndexBox subSidx = subSidxs.get(i);
+                subSidx.setFirstOffset(layout.getOffset(moofMdats.get(2 * i * sidxFanOut)) - layout.getEnd(subSidx));
+            }
         }
         isoFile.addBox(createMfra(movie, isoFile));
 
         return isoFile;
     }
 
-    private SegmentIndexBox createSidx(BasicContainer isoFile, List<Box> moofMdats, long offsetBetweenSidxAndFirstMoof) {
+    /**
+     * Writes the same file as <code>build(movie).writeContainer(target)</code> but never holds more than one
+     * fragment in memory. A first pass determines the size and timing of all fragments which is all that's
+     * required to write ftyp, moov and sidx up front. Afterwards each moof/mdat pair is created, written and
+     * dropped.
+     *
+     * @param movie  a movie with exactly one track
+     * @param target the channel the file is written to
+     * @throws IOException if writing to <code>target</code> fails
+     */
+    public void writeStreaming(Movie movie, WritableByteChannel target) throws IOException {
+        if (movie.getTracks().size() != 1) {
+            throw new RuntimeException("Only onetrack allowed");
+        }
+        Track track = movie.getTracks().get(0);
+
+        BasicContainer header = new BasicContainer();
+        header.addBox(createFtyp(movie));
+        MovieBox moov = (MovieBox) createMoov(movie);
+        header.addBox(moov);
+        List<Fragment> fragments = createFragments(track);
+        for (Fragment fragment : fragments) {
+            // the moof is tiny and thrown away right away - only its size is of interest here
+            fragment.moofSize = createMoof(fragment.startSample, fragment.endSample, track, fragment.sequenceNumber).getSize();
+            fragment.mdatSize = 8;
+            for (long sampleSize : getSampleSizes(fragment.startSample, fragment.endSample, track, fragment.sequenceNumber)) {
+                fragment.mdatSize += sampleSize;
+            }
+        }
+        List<SegmentIndexBox> subSidxs = createSubSidxs(header, fragments);
+        header.addBox(subSidxs.isEmpty() ? createSidx(header, fragments, 0) : createTopLevelSidx(header, fragments, subSidxs));
+        layout = new BoxLayout(header);
+        header.writeContainer(target);
+
+        long offset = layout.getSize();
+
+        TrackExtendsBox trex = Path.getPath(moov, "mvex[0]/trex[0]");
+        List<TrackFragmentRandomAccessBox.Entry> tfraEntries = new LinkedList<TrackFragmentRandomAccessBox.Entry>();
+        long time = 0;
+        for (int i = 0; i < fragments.size(); i++) {
+            Fragment fragment = fragments.get(i);
+            if (!subSidxs.isEmpty() && i % sidxFanOut == 0) {
+                SegmentIndexBox subSidx = subSidxs.get(i / sidxFanOut);
+                subSidx.getBox(target);
+                offset += subSidx.getSize();
+            }
+            MovieFragmentBox moof = (MovieFragmentBox) createMoof(fragment.startSample, fragment.endSample, track, fragment.sequenceNumber);
+            time = addTfraEntries(tfraEntries, moof, offset, time, trex, track);
+            moof.getBox(target);
+            SampleByteRanges ranges = sampleByteRanges.get(track);
+            if (ranges != null) {
+                writeMdat(fragment, ranges, target);
+            } else {
+                createMdat(fragment.startSample, fragment.endSample, track, fragment.sequenceNumber).getBox(target);
+            }
+            offset += fragment.moofSize + fragment.mdatSize;
+        }
+
+        MovieFragmentRandomAccessBox mfra = new MovieFragmentRandomAccessBox();
+        mfra.addBox(createTfra(tfraEntries, track));
+        MovieFragmentRandomAccessOffsetBox mfro = new MovieFragmentRandomAccessOffsetBox();
+        mfra.addBox(mfro);
+        mfro.setMfraSize(mfra.getSize());
+        mfra.getBox(target);
+    }
+
+    /**
+     * Writes the track as init segment (ftyp, moov) and one media segment (styp, moof, mdat) per fragment. The
+     * fragments are the same as in the single file but there is neither sidx nor mfra. Media segments are named
+     * after the init segment (see {@link FileIndex#getMediaSegment(File, long)}), left-overs of a previous run with
+     * more segments are deleted.
+     *
+     * @param movie       a movie with exactly one track
+     * @param initSegment the init segment's file
+     * @throws IOException if writing a segment fails
+     */
+    public void writeSegmented(Movie movie, File initSegment) throws IOException {
+        if (movie.getTracks().size() != 1) {
+            throw new RuntimeException("Only onetrack allowed");
+        }
+        Track track = movie.getTracks().get(0);
+
+        BasicContainer header = new BasicContainer();
+        header.addBox(createFtyp(movie));
+        header.addBox(createMoov(movie));
+        layout = new BoxLayout(header);
+        FileOutputStream fos = new FileOutputStream(initSegment);
+        try {
+            header.writeContainer(fos.getChannel());
+        } finally {
+            fos.close();
+        }
+
+        SampleByteRanges ranges = sampleByteRanges.get(track);
+        List<Fragment> fragments = createFragments(track);
+        for (Fragment fragment : fragments) {
+            fos = new FileOutputStream(FileIndex.getMediaSegment(initSegment, fragment.sequenceNumber));
+            try {
+                WritableByteChannel target = fos.getChannel();
+                new SegmentTypeBox("msdh", 0, Collections.singletonList("msdh")).getBox(target);
+                createMoof(fragment.startSample, fragment.endSample, track, fragment.sequenceNumber).getBox(target);
+                if (ranges != null) {
+                    fragment.mdatSize = 8;
+                    for (long sampleSize : getSampleSizes(fragment.startSample, fragment.endSample, track, fragment.sequenceNumber)) {
+                        fragment.mdatSize += sampleSize;
+                    }
+                    writeMdat(fragment, ranges, target);
+                } else {
+                    createMdat(fragment.startSample, fragment.endSample, track, fragment.sequenceNumber).getBox(target);
+                }
+            } finally {
+                fos.close();
+            }
+        }
+        File stale;
+        for (long number = fragments.size() + 1; (stale = FileIndex.getMediaSegment(initSegment, number)).exists(); number++) {
+            if (!stale.delete()) {
+                throw new IOException("Cannot delete " + stale + " of a previous run");
+            }
+        }
+    }
+
+    /**
+     * Writes the fragment's mdat like <code>createMdat(...).getBox(target)</code> but transfers the payload
+     * directly from the source file.
+     */
+    private void writeMdat(Fragment fragment, SampleByteRanges ranges, WritableByteChannel target) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        IsoTypeWriter.writeUInt32(header, l2i(fragment.mdatSize));
+        header.put(IsoFile.fourCCtoBytes("mdat"));
+        header.rewind();
+        target.write(header);
+        long transferred = ranges.transferTo(fragment.startSample, fragment.endSample, target);
+        if (transferred != fragment.mdatSize - 8) {
+            throw new RuntimeException("Transferred " + transferred + " bytes of sample data but mdat has " +
+                    (fragment.mdatSize - 8) + " bytes of payload");
+        }
+    }
+
+    /**
+     * Determines all fragments of the track as <code>createMoofMdat</code> would create them. Sample ranges and
+     * timing are taken from the sample tables, the box sizes are left to the caller.
+     */
+    protected List<Fragment> createFragments(Track track) {
+        DecodeTimeIndex decodeTimeIndex = getDecodeTimeIndex(track);
+        List<Fragment> fragments = new ArrayList<Fragment>();
+        long[] startSamples = intersectionFinder.sampleNumbers(track);
+        int sequence = 1;
+        for (int cycle = 0; cycle < startSamples.length; cycle++) {
+            long startSample = startSamples[cycle];
+            long endSample = cycle + 1 < startSamples.length ? startSamples[cycle + 1] : track.getSamples().size() + 1;
+            if (startSample != endSample) {
+                Fragment fragment = new Fragment();
+                fragment.startSample = startSample;
+                fragment.endSample = endSample;
+                fragment.sequenceNumber = sequence++;
+                long firstPresentationTime = decodeTimeIndex.getPresentationTime(startSample);
+                long earliestPresentationTime = firstPresentationTime;
+                for (long sample = startSample + 1; sample < endSample; sample++) {
+                    earliestPresentationTime = Math.min(earliestPresentationTime, decodeTimeIndex.getPresentationTime(sample));
+                }
+                fragment.earliestPresentationTime = earliestPresentationTime;
+                // SAP type 1 if the first sample is also the first one presented, unknown otherwise
+                fragment.sapType = (byte) (firstPresentationTime > earliestPresentationTime ? 0 : 1);
+                fragment.duration = decodeTimeIndex.getDuration(startSample, endSample);
+                fragments.add(fragment);
+            }
+        }
+        return fragments;
+    }
+
+    /**
+     * Creates the tfra from the moofs in the file. Their offsets are taken from the layout instead of summing up
+     * the sizes of all preceding boxes.
+     */
+    @Override
+    protected Box createTfra(Track track, Container isoFile) {
+        BoxLayout fileLayout = layout;
+        List<MovieFragmentBox> moofs = isoFile.getBoxes(MovieFragmentBox.class);
+        if (fileLayout == null || (!moofs.isEmpty() && !fileLayout.contains(moofs.get(0)))) {
+            fileLayout = new BoxLayout(isoFile);
+        }
+        TrackExtendsBox trex = Path.getPath(isoFile, "/moov[0]/mvex[0]/trex[0]");
+        List<TrackFragmentRandomAccessBox.Entry> entries = new LinkedList<TrackFragmentRandomAccessBox.Entry>();
+        long time = 0;
+        for (MovieFragmentBox moof : moofs) {
+            time = addTfraEntries(entries, moof, fileLayout.getOffset(moof), time, trex, track);
+        }
+        return createTfra(entries, track);
+    }
+
+    private TrackFragmentRandomAccessBox createTfra(List<TrackFragmentRandomAccessBox.Entry> entries, Track track) {
+        TrackFragmentRandomAccessBox tfra = new TrackFragmentRandomAccessBox();
+        tfra.setVersion(1);
+        tfra.setEntries(entries);
+        tfra.setTrackId(track.getTrackMetaData().getTrackId());
+        return tfra;
+    }
+
+    /**
+     * Adds the tfra entries of one moof exactly like <code>createTfra</code> does when walking a complete file.
+     *
+     * @return the decode time after the last sample of the moof
+     */
+    private long addTfraEntries(List<TrackFragmentRandomAccessBox.Entry> entries, MovieFragmentBox moof, long moofOffset,
+                                long time, TrackExtendsBox trex, Track track) {
+        List<TrackRunBox> truns = moof.getTrackRunBoxes();
+        for (int j = 0; j < truns.size(); j++) {
+            TrackRunBox trun = truns.get(j);
+            List<TrackFragmentRandomAccessBox.Entry> entriesThisTrun = new LinkedList<TrackFragmentRandomAccessBox.Entry>();
+            for (int k = 0; k < trun.getEntries().size(); k++) {
+                TrackRunBox.Entry trunEntry = trun.getEntries().get(k);
+                SampleFlags sf;
+                if (k == 0 && trun.isFirstSampleFlagsPresent()) {
+                    sf = trun.getFirstSampleFlags();
+                } else if (trun.isSampleFlagsPresent()) {
+                    sf = trunEntry.getSampleFlags();
+                } else {
+                    sf = trex.getDefaultSampleFlags();
+                }
+                if (sf == null && track.getHandler().equals("vide")) {
+                    throw new RuntimeException("Cannot find SampleFlags for video track but it's required to build tfra");
+                }
+                if (sf == null || sf.getSampleDependsOn() == 2) {
+                    entriesThisTrun.add(new TrackFragmentRandomAccessBox.Entry(time, moofOffset, 1, j + 1, k + 1));
+                }
+                time += trunEntry.getSampleDuration();
+            }
+            if (entriesThisTrun.size() == trun.getEntries().size() && trun.getEntries().size() > 0) {
+                entries.add(entriesThisTrun.get(0));
+            } else {
+                entries.addAll(entriesThisTrun);
+            }
+        }
+        return time;
+    }
+
+    private SegmentIndexBox createSidx(Container isoFile, List<Fragment> fragments, long offsetBetweenSidxAndFirstMoof) {
         SegmentIndexBox sidx = new SegmentIndexBox();
         sidx.setVersion(0);
         sidx.setFlags(0);
         sidx.setReserved(0);
         sidx.setFirstOffset(offsetBetweenSidxAndFirstMoof);
-        List<SegmentIndexBox.Entry> entries = sidx.getEntries();
-        MovieFragmentBox firstMoof = null;
-        for (Box moofMdat : moofMdats) {
-            if (moofMdat.getType().equals("moof")) {
-                firstMoof = (MovieFragmentBox) moofMdat;
-                entries.add(new SegmentIndexBox.Entry());
-            }
-        }
         TrackHeaderBox tkhd = (TrackHeaderBox) Path.getPath(isoFile, "/moov[0]/trak[0]/tkhd[0]");
         MediaHeaderBox mdhd = (MediaHeaderBox) Path.getPath(isoFile, "/moov[0]/trak[0]/mdia[0]/mdhd[0]");
         sidx.setReferenceId(tkhd.getTrackId());
         sidx.setTimeScale(mdhd.getTimescale());
-        // we only have one
-        TrackRunBox trun = firstMoof.getTrackRunBoxes().get(0);
-        long[] ptss = getPtss(trun);
-        Arrays.sort(ptss); // index 0 has now the earliest presentation time stamp!
         long timeMappingEdit = getTimeMappingEditTime(isoFile);
-        sidx.setEarliestPresentationTime(ptss[0] - timeMappingEdit);
-
-
-        // ugly code ...
-
-        int size = 0;
-        int i = 0;
-        MovieFragmentBox lassMoof = null;
-        for (Box moofMdat : moofMdats) {
-
-            if (moofMdat.getType().equals("moof") && size > 0) {
-                SegmentIndexBox.Entry entry = entries.get(i++);
-                entry.setReferencedSize(size);
-                ptss = getPtss(lassMoof.getTrackRunBoxes().get(0));
-                entry.setSapType(getFirstFrameSapType(ptss));
-                entry.setSubsegmentDuration(getTrunDuration(lassMoof.getTrackRunBoxes().get(0)));
-                entry.setStartsWithSap((byte) 1); // we know it - no need to lookup
-                size = l2i(moofMdat.getSize());
-            } else {
-                size += l2i(moofMdat.getSize());
-            }
-            if (moofMdat.getType().equals("moof")) {
-                lassMoof = (MovieFragmentBox) moofMdat;
-            }
+        sidx.setEarliestPresentationTime(fragments.get(0).earliestPresentationTime - timeMappingEdit);
 
+        List<SegmentIndexBox.Entry> entries = sidx.getEntries();
+        for (Fragment fragment : fragments) {
+            SegmentIndexBox.Entry entry = new SegmentIndexBox.Entry();
+            entry.setReferencedSize(l2i(fragment.moofSize + fragment.mdatSize));
+            entry.setSapType(fragment.sapType);
+            entry.setSubsegmentDuration(fragment.duration);
+            entry.setStartsWithSap((byte) 1); // we know it - no need to lookup
+            entries.add(entry);
         }
-        SegmentIndexBox.Entry entry = entries.get(i);
-        ptss = getPtss(lassMoof.getTrackRunBoxes().get(0));
-        entry.setSapType(getFirstFrameSapType(ptss));
-        entry.setSubsegmentDuration(getTrunDuration(lassMoof.getTrackRunBoxes().get(0)));
-        entry.setReferencedSize(size);
-        entry.setStartsWithSap((byte) 1); // we know it - no need to lookup
 
         return sidx;
     }
 
-    protected byte getFirstFrameSapType(long[] ptss) {
-        long idrTimeStamp = ptss[0];
-        Arrays.sort(ptss);
-        if (idrTimeStamp > ptss[0]) {
-            return 0;
-        } else {
-            return 1;
+    /**
+     * Creates one sidx per <code>sidxFanOut</code> fragments or none if a flat sidx is sufficient.
+     */
+    private List<SegmentIndexBox> createSubSidxs(Container isoFile, List<Fragment> fragments) {
+        List<SegmentIndexBox> subSidxs = new ArrayList<SegmentIndexBox>();
+        if (sidxFanOut > 0 && fragments.size() > sidxFanOut) {
+            for (int i = 0; i < fragments.size(); i += sidxFanOut) {
+                subSidxs.add(createSidx(isoFile, fragments.subList(i, Math.min(i + sidxFanOut, fragments.size())), 0));
+            }
         }
+        return subSidxs;
     }
 
+    /**
+     * Creates the sidx referencing the sub-sidx boxes. Each reference spans the sub-sidx and all fragments it indexes.
+     */
+    private SegmentIndexBox createTopLevelSidx(Container isoFile, List<Fragment> fragments, List<SegmentIndexBox> subSidxs) {
+        SegmentIndexBox sidx = new SegmentIndexBox();
+        sidx.setVersion(0);
+        sidx.setFlags(0);
+        sidx.setReserved(0);
+        sidx.setFirstOffset(0);
+        sidx.setReferenceId(subSidxs.get(0).getReferenceId());
+        sidx.setTimeScale(subSidxs.get(0).getTimeScale());
+        sidx.setEarliestPresentationTime(subSidxs.get(0).getEarliestPresentationTime());
+
+        List<SegmentIndexBox.Entry> entries = sidx.getEntries();
+        for (int i = 0; i < subSidxs.size(); i++) {
+            List<Fragment> indexed = fragments.subList(i * sidxFanOut, Math.min((i + 1) * sidxFanOut, fragments.size()));
+            long referencedSize = subSidxs.get(i).getSize();
+            long duration = 0;
+            for (Fragment fragment : indexed) {
+                referencedSize += fragment.moofSize + fragment.mdatSize;
+                duration += fragment.duration;
+            }
+            SegmentIndexBox.Entry entry = new SegmentIndexBox.Entry();
+            entry.setReferenceType((byte) 1);
+            entry.setReferencedSize(l2i(referencedSize));
+            entry.setSubsegmentDuration(duration);
+            entry.setStartsWithSap((byte) 1);
+            entry.setSapType(indexed.get(0).sapType);
+            entries.add(entry);
+        }
+        return sidx;
+    }
 
     private long getTimeMappingEditTime(Container file) {
         final EditListBox editList = (EditListBox) Path.getPath(file, "/moov[0]/trak[0]/edts[0]/elst[0]");
@@ -417,27 +792,18 @@ public class StreamingDeliveryTargetMp4Builder extends FragmentedMp4Builder {
     }
 
 
-    private long[] getPtss(TrackRunBox trun) {
-        long currentTime = 0;
-        long[] ptss = new long[trun.getEntries().size()];
-        for (int j = 0; j < ptss.length; j++) {
-            ptss[j] = currentTime + trun.getEntries().get(j).getSampleCompositionTimeOffset();
-            currentTime += trun.getEntries().get(j).getSampleDuration();
-        }
-        return ptss;
-    }
-
-    protected long getTrunDuration(TrackRunBox trun) {
-        final List<TrackRunBox.Entry> trunEntries = trun.getEntries();
-        long duration = 0;
-        for (TrackRunBox.Entry trunEntry : trunEntries) {
-            duration += trunEntry.getSampleDuration();
-        }
-        return duration;
+    /**
+     * Size and timing of a single moof/mdat pair.
+     */
+    static class Fragment {
+        long startSample;
+        long endSample;
+        int sequenceNumber;
+        long moofSize;
+        long mdatSize;
+        long duration;
+        long earliestPresentationTime;
+        byte sapType;
     }
 
-
 }
-
-
-
@@ -0,0 +1,78 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.builder.FragmentIntersectionFinder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Aligns the fragments of tracks with different sample counts, e.g. video renditions with 25 and 50 fps or audio
+ * next to video. The fragment start times are given as sample numbers of a reference track. Every other track starts
+ * its fragments with the sample closest to these times - with its closest sync sample if it has sync samples.
+ * Samples are looked up by binary search over the tracks' cumulative decode times.
+ */
+public class TimeAlignedFragmentIntersectionFinder implements FragmentIntersectionFinder {
+    private final Map<Track, long[]> fragmentStartSamples = new HashMap<Track, long[]>();
+
+    /**
+     * @param referenceTrack        track that defines the fragment start times
+     * @param referenceStartSamples sorted sample numbers of the reference track that start a fragment
+     * @param tracks                all tracks to be aligned, may include the reference track
+     */
+    public TimeAlignedFragmentIntersectionFinder(Track referenceTrack, long[] referenceStartSamples, Iterable<Track> tracks) {
+        DecodeTimeIndex referenceIndex = new DecodeTimeIndex(referenceTrack);
+        for (Track track : tracks) {
+            if (track == referenceTrack) {
+                fragmentStartSamples.put(track, referenceStartSamples);
+                continue;
+            }
+            DecodeTimeIndex decodeTimeIndex = new DecodeTimeIndex(track);
+            long[] syncSamples = track.getSyncSamples();
+            if (syncSamples != null && syncSamples.length == 0) {
+                syncSamples = null;
+            }
+            long[] startSamples = new long[referenceStartSamples.length];
+            int count = 0;
+            for (long referenceSample : referenceStartSamples) {
+                long time = decodeTimeIndex.toTrackTime(referenceIndex.getDecodeTime(referenceSample), referenceIndex.getTimescale());
+                long sample = decodeTimeIndex.getSampleAt(time);
+                if (syncSamples != null) {
+                    sample = getClosestSyncSample(decodeTimeIndex, syncSamples, sample, time);
+                }
+                // a track ending early maps several start times to its last sample
+                if (count == 0 || sample > startSamples[count - 1]) {
+                    startSamples[count++] = sample;
+                }
+            }
+            fragmentStartSamples.put(track, Arrays.copyOf(startSamples, count));
+        }
+    }
+
+    private static long getClosestSyncSample(DecodeTimeIndex decodeTimeIndex, long[] syncSamples, long sample, long time) {
+        int index = Arrays.binarySearch(syncSamples, sample);
+        if (index >= 0) {
+            return sample;
+        }
+        int next = -index - 1;
+        if (next == 0) {
+            return syncSamples[0];
+        }
+        if (next == syncSamples.length) {
+            return syncSamples[next - 1];
+        }
+        long before = time - decodeTimeIndex.getDecodeTime(syncSamples[next - 1]);
+        long after = decodeTimeIndex.getDecodeTime(syncSamples[next]) - time;
+        return before <= after ? syncSamples[next - 1] : syncSamples[next];
+    }
+
+    public long[] sampleNumbers(Track track) {
+        return fragmentStartSamples.get(track);
+    }
+}
@@ -7,12 +7,17 @@ package com.castlabs.csf.manifest;
 
 import com.castlabs.csf.AbstractCommand;
 import mpegDashSchemaMpd2011.MPDDocument;
+import org.apache.xmlbeans.XmlError;
 import org.apache.xmlbeans.XmlOptions;
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.FileOptionHandler;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.util.HashMap;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -20,21 +25,61 @@ import java.util.logging.Logger;
 public class CreateManifestForFileset extends AbstractCommand {
     @Argument(required = true, multiValued = true, handler = FileOptionHandler.class, usage = "MP4 and bitstream input files", metaVar = "vid1.mp4, vid2.mp4, aud1.mp4, aud2.ec3 ...")
     protected List<File> files;
+
+    @Option(name = "--threads", usage = "Number of input files read and analyzed in parallel. Defaults to the number of processors.")
+    protected int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--peak-bandwidth", usage = "Sets Representation@bandwidth to the peak bitrate within a sliding window instead of the average bitrate")
+    protected boolean peakBandwidth = false;
+
+    @Option(name = "--bandwidth-window", depends = {"--peak-bandwidth"}, usage = "Length of the peak bitrate's sliding window in seconds. Defaults to the minBufferTime.")
+    protected double bandwidthWindow = -1;
+
+    @Option(name = "--validate", usage = "Validates the manifest against the MPD schema after writing it")
+    protected boolean validate = false;
+
+    @Option(name = "--no-index-cache", usage = "Parses all input files instead of using their index sidecar (.csfidx) files and doesn't write sidecars")
+    protected boolean noIndexCache = false;
+
+    @Option(name = "--hls", usage = "Also writes HLS playlists (master.m3u8 and one media playlist per file) for the same files")
+    protected boolean hls = false;
+
     Logger logger;
 
     public int run() throws Exception {
         logger = setupLogger();
-        MPDDocument mpd = new ManifestWriterImpl(files, logger).getManifest();
-        XmlOptions xmlOptions = new XmlOptions();
-        //xmlOptions.setUseDefaultNamespace();
-        HashMap<String, String> ns = new HashMap<String, String>();
-        //ns.put("urn:mpeg:DASH:schema:MPD:2011", "");
-        ns.put("urn:mpeg:cenc:2013", "cenc");
-        xmlOptions.setSaveSuggestedPrefixes(ns);
-        xmlOptions.setSaveAggressiveNamespaces();
-        xmlOptions.setUseDefaultNamespace();
-        xmlOptions.setSavePrettyPrint();
-        mpd.save(new File("manifest.mpd"), xmlOptions);
+        files = resolve(files);
+        ManifestWriterImpl manifestWriter = new ManifestWriterImpl(files, logger, !noIndexCache, threads);
+        manifestWriter.setPeakBandwidth(peakBandwidth);
+        manifestWriter.setBandwidthWindow(bandwidthWindow);
+        File manifest = resolve("manifest.mpd");
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(manifest));
+        try {
+            new ManifestStreamWriter(manifestWriter).write(os);
+        } finally {
+            os.close();
+        }
+        if (hls) {
+            new HlsPlaylistWriter(manifestWriter, logger).write(manifest.getAbsoluteFile().getParentFile());
+        }
+        if (validate) {
+            return validate(manifest) ? 0 : 1;
+        }
         return 0;
     }
+
+    private boolean validate(File manifest) throws Exception {
+        List<XmlError> errors = new ArrayList<XmlError>();
+        XmlOptions xmlOptions = new XmlOptions();
+        xmlOptions.setErrorListener(errors);
+        MPDDocument mpd = MPDDocument.Factory.parse(manifest);
+        if (mpd.validate(xmlOptions)) {
+            logger.info(manifest + " is valid");
+            return true;
+        }
+        for (XmlError error : errors) {
+            logger.severe(manifest + ": " + error);
+        }
+        return false;
+    }
 }
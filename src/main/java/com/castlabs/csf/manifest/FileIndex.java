@@ -0,0 +1,660 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.manifest;
+
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.fragment.*;
+import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
+import com.coremedia.iso.boxes.sampleentry.DashHelper;
+import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
+import com.googlecode.mp4parser.boxes.threegpp26244.SegmentIndexBox;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Everything the manifest needs to know about a single track (CFF) file. The index is built once from the MP4
+ * file and stored next to it in a compact binary sidecar file (<code>&lt;file&gt;.csfidx</code>). As long as the
+ * sidecar matches the MP4 file's size, modification time and a checksum of its first bytes the index is read from
+ * the sidecar and the MP4 file is not parsed at all.
+ * <p>
+ * A segmented output consists of an init segment (ftyp, moov) and media segments (moof, mdat) named after it
+ * (see {@link #getMediaSegment(File, long)}). Its index is built from the init segment and all media segments, the
+ * sidecar belongs to the init segment and also records the number of media segments and size and modification time
+ * of the last one.
+ */
+public class FileIndex {
+    public static final String SIDECAR_EXTENSION = ".csfidx";
+    private static final int MAGIC = 0x43534649; // CSFI
+    private static final int VERSION = 4;
+    private static final int CHECKSUM_LENGTH = 64 * 1024;
+
+    private String name;
+
+    long trackId;
+    String handler;
+    String codecs;
+    String language;
+    String assetId;
+    long movieTimescale;
+    long mediaTimescale;
+    long fragmentDuration;
+    long width;
+    long height;
+    long sampleRate;
+    String channelConfigurationSchemeIdUri;
+    String channelConfigurationValue;
+    UUID keyId;
+
+    long fileSize;
+    long moovOffset = -1;
+    long moovSize;
+    long sidxOffset = -1;
+    long sidxSize;
+    boolean segmented;
+    long firstDecodeTime;
+
+    long referenceTimescale;
+    long[] referenceOffsets = new long[0];
+    long[] referenceSizes = new long[0];
+    long[] referenceDurations = new long[0];
+
+    long[] moofSizes = new long[0];
+    int[] fragmentSampleCounts = new int[0];
+    long[] sampleSizes = new long[0];
+    long[] sampleDurations = new long[0];
+
+    private int references;
+    private int fragments;
+    private int samples;
+
+    private FileIndex() {
+    }
+
+    /**
+     * @param initSegment init segment of a segmented output
+     * @param number      1-based number of the media segment (= moof sequence number)
+     */
+    public static File getMediaSegment(File initSegment, long number) {
+        return new File(initSegment.getParentFile(), getMediaSegmentName(initSegment.getName(), Long.toString(number)));
+    }
+
+    /**
+     * @return the media segment name as DASH SegmentTemplate@media
+     */
+    public static String getMediaSegmentTemplate(String initSegmentName) {
+        return getMediaSegmentName(initSegmentName, "$Number$");
+    }
+
+    /**
+     * The init segment's extension is kept: <code>title.uvv</code> and <code>title.uva</code> must not share their
+     * media segments.
+     */
+    private static String getMediaSegmentName(String initSegmentName, String number) {
+        return initSegmentName + "_" + number + ".m4s";
+    }
+
+    public static File getSidecar(File file) {
+        return new File(file.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * @return the index stored in the file's sidecar or <code>null</code> if there is no valid sidecar
+     */
+    public static FileIndex readSidecar(File file) throws IOException {
+        File sidecar = getSidecar(file);
+        if (!sidecar.exists()) {
+            return null;
+        }
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+        try {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION ||
+                    dis.readLong() != file.length() || dis.readLong() != file.lastModified() ||
+                    dis.readLong() != checksum(file) ||
+                    !matchesMediaSegments(file, dis.readInt(), dis.readLong(), dis.readLong())) {
+                return null;
+            }
+            FileIndex index = new FileIndex();
+            index.name = file.getName();
+            index.read(dis, sidecar.length());
+            return index;
+        } catch (IOException e) {
+            // truncated or otherwise unreadable - the index is rebuilt
+            return null;
+        } catch (RuntimeException e) {
+            // corrupt body behind a valid header, e.g. an invalid key ID - the index is rebuilt
+            return null;
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Media segments are not covered by size, modification time and checksum of the init segment. The sidecar of a
+     * segmented output is only valid while the number of media segments and size and modification time of the last
+     * one are unchanged.
+     */
+    private static boolean matchesMediaSegments(File initSegment, int count, long lastSize, long lastModified) {
+        if (count == 0) {
+            return true;
+        }
+        File last = getMediaSegment(initSegment, count);
+        return last.length() == lastSize && last.lastModified() == lastModified &&
+                !getMediaSegment(initSegment, count + 1).exists();
+    }
+
+    /**
+     * Writes the index to the sidecar of the given MP4 file. The sidecar is written to a temporary file that is
+     * renamed when complete, so jobs reading the sidecar concurrently never see a partially written one.
+     */
+    public void writeSidecar(File file) throws IOException {
+        File sidecar = getSidecar(file);
+        File tmp = File.createTempFile(sidecar.getName(), ".tmp", sidecar.getAbsoluteFile().getParentFile());
+        try {
+            writeSidecar(file, tmp);
+            // replaces an existing sidecar atomically on POSIX file systems, elsewhere the old one is deleted first
+            if (!tmp.renameTo(sidecar) && !(sidecar.delete() && tmp.renameTo(sidecar))) {
+                throw new IOException("Cannot rename " + tmp + " to " + sidecar);
+            }
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    private void writeSidecar(File file, File sidecar) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(file.length());
+            dos.writeLong(file.lastModified());
+            dos.writeLong(checksum(file));
+            int segmentCount = segmented ? moofSizes.length : 0;
+            File lastSegment = getMediaSegment(file, segmentCount);
+            dos.writeInt(segmentCount);
+            dos.writeLong(segmentCount > 0 ? lastSegment.length() : 0);
+            dos.writeLong(segmentCount > 0 ? lastSegment.lastModified() : 0);
+            write(dos);
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Parses the MP4 file's headers, fragment headers and segment index. If the file is an init segment the
+     * fragment headers are read from its media segments.
+     */
+    public static FileIndex build(File file) throws IOException {
+        LazyIsoFile isoFile = new LazyIsoFile(file);
+        try {
+            FileIndex index = new FileIndex();
+            index.name = file.getName();
+            TrackMetadata metadata = new TrackMetadata(isoFile);
+            index.build(metadata);
+            index.scan(isoFile, metadata.trex);
+            if (index.fragments == 0 && index.references == 0) {
+                File segment;
+                while ((segment = getMediaSegment(file, index.fragments + 1)).exists()) {
+                    LazyIsoFile mediaSegment = new LazyIsoFile(segment);
+                    try {
+                        index.scan(mediaSegment, metadata.trex);
+                    } finally {
+                        mediaSegment.close();
+                    }
+                    index.segmented = true;
+                }
+            }
+            index.trim();
+            return index;
+        } finally {
+            isoFile.close();
+        }
+    }
+
+    private void build(TrackMetadata metadata) {
+        assert metadata.trackCount == 1 : "Only one track per file allowed";
+        trackId = metadata.tkhd.getTrackId();
+        handler = metadata.getHandlerType();
+        language = metadata.mdhd.getLanguage();
+        mediaTimescale = metadata.mdhd.getTimescale();
+        movieTimescale = metadata.mvhd.getTimescale();
+        fragmentDuration = metadata.mehd.getFragmentDuration();
+        if (metadata.cinf != null) {
+            assetId = metadata.cinf.getIdEntries().get("urn:dece:asset_id");
+        }
+
+        if (handler.equals("vide")) {
+            VisualSampleEntry vse = (VisualSampleEntry) metadata.sampleEntry;
+            codecs = DashHelper.getRfc6381Codec(vse);
+            width = (long) vse.getWidth();
+            height = (long) vse.getHeight();
+        }
+        if (handler.equals("soun")) {
+            AudioSampleEntry ase = (AudioSampleEntry) metadata.sampleEntry;
+            codecs = DashHelper.getRfc6381Codec(ase);
+            sampleRate = ase.getSampleRate();
+            DashHelper.ChannelConfiguration cc = DashHelper.getChannelConfiguration(ase);
+            channelConfigurationSchemeIdUri = cc.schemeIdUri;
+            channelConfigurationValue = cc.value;
+        }
+        if (metadata.tenc != null && metadata.sampleEntry.getType().equals("encv")) {
+            keyId = UUID.fromString(metadata.tenc.getDefault_KID());
+        }
+    }
+
+    /**
+     * Adds the top-level boxes of the file (or media segment) to the index.
+     */
+    private void scan(LazyIsoFile isoFile, TrackExtendsBox trex) throws IOException {
+        for (Box box : isoFile.getBoxes()) {
+            fileSize += box.getSize();
+            if (box.getType().equals("moov") && moovOffset < 0) {
+                moovOffset = isoFile.getOffset(box);
+                moovSize = box.getSize();
+            } else if (box.getType().equals("sidx")) {
+                if (sidxOffset < 0) {
+                    sidxOffset = isoFile.getOffset(box);
+                    sidxSize = box.getSize();
+                }
+                SegmentIndexBox sidx = isoFile.parse(box);
+                if (referenceTimescale != 0 && referenceTimescale != sidx.getTimeScale()) {
+                    throw new RuntimeException(name + " has sidx boxes with different timescales");
+                }
+                referenceTimescale = sidx.getTimeScale();
+                long offset = isoFile.getOffset(box) + box.getSize() + sidx.getFirstOffset();
+                // references to other sidx boxes are skipped as these are top-level boxes themselves
+                for (SegmentIndexBox.Entry entry : sidx.getEntries()) {
+                    if (entry.getReferenceType() == 0) {
+                        if (references == referenceSizes.length) {
+                            referenceOffsets = Arrays.copyOf(referenceOffsets, references * 2 + 16);
+                            referenceSizes = Arrays.copyOf(referenceSizes, referenceOffsets.length);
+                            referenceDurations = Arrays.copyOf(referenceDurations, referenceOffsets.length);
+                        }
+                        referenceOffsets[references] = offset;
+                        referenceSizes[references] = entry.getReferencedSize();
+                        referenceDurations[references] = entry.getSubsegmentDuration();
+                        references++;
+                    }
+                    offset += entry.getReferencedSize();
+                }
+            } else if (box.getType().equals("moof")) {
+                MovieFragmentBox moof = isoFile.parse(box);
+                TrackFragmentHeaderBox tfhd = moof.getTrackFragmentHeaderBoxes().get(0);
+                long defaultSize = tfhd.hasDefaultSampleSize() ? tfhd.getDefaultSampleSize() : trex.getDefaultSampleSize();
+                long defaultDuration = tfhd.hasDefaultSampleDuration() ? tfhd.getDefaultSampleDuration() : trex.getDefaultSampleDuration();
+                if (fragments == moofSizes.length) {
+                    moofSizes = Arrays.copyOf(moofSizes, fragments * 2 + 16);
+                    fragmentSampleCounts = Arrays.copyOf(fragmentSampleCounts, moofSizes.length);
+                }
+                moofSizes[fragments] = moof.getSize();
+                if (fragments == 0) {
+                    List<TrackFragmentBaseMediaDecodeTimeBox> tfdts = moof.getBoxes(TrackFragmentBaseMediaDecodeTimeBox.class, true);
+                    firstDecodeTime = tfdts.isEmpty() ? 0 : tfdts.get(0).getBaseMediaDecodeTime();
+                }
+                int count = 0;
+                for (TrackRunBox trun : moof.getTrackRunBoxes()) {
+                    List<TrackRunBox.Entry> entries = trun.getEntries();
+                    if (samples + entries.size() > sampleSizes.length) {
+                        sampleSizes = Arrays.copyOf(sampleSizes, (samples + entries.size()) * 2);
+                        sampleDurations = Arrays.copyOf(sampleDurations, sampleSizes.length);
+                    }
+                    boolean sizePresent = trun.isSampleSizePresent();
+                    boolean durationPresent = trun.isSampleDurationPresent();
+                    for (TrackRunBox.Entry entry : entries) {
+                        sampleSizes[samples] = sizePresent ? entry.getSampleSize() : defaultSize;
+                        sampleDurations[samples] = durationPresent ? entry.getSampleDuration() : defaultDuration;
+                        samples++;
+                        count++;
+                    }
+                }
+                fragmentSampleCounts[fragments++] = count;
+            }
+        }
+    }
+
+    private void trim() {
+        referenceOffsets = Arrays.copyOf(referenceOffsets, references);
+        referenceSizes = Arrays.copyOf(referenceSizes, references);
+        referenceDurations = Arrays.copyOf(referenceDurations, references);
+        moofSizes = Arrays.copyOf(moofSizes, fragments);
+        fragmentSampleCounts = Arrays.copyOf(fragmentSampleCounts, fragments);
+        sampleSizes = Arrays.copyOf(sampleSizes, samples);
+        sampleDurations = Arrays.copyOf(sampleDurations, samples);
+    }
+
+    private void write(DataOutputStream dos) throws IOException {
+        dos.writeLong(trackId);
+        writeString(dos, handler);
+        writeString(dos, codecs);
+        writeString(dos, language);
+        writeString(dos, assetId);
+        dos.writeLong(movieTimescale);
+        dos.writeLong(mediaTimescale);
+        dos.writeLong(fragmentDuration);
+        dos.writeLong(width);
+        dos.writeLong(height);
+        dos.writeLong(sampleRate);
+        writeString(dos, channelConfigurationSchemeIdUri);
+        writeString(dos, channelConfigurationValue);
+        writeString(dos, keyId != null ? keyId.toString() : null);
+        dos.writeLong(fileSize);
+        dos.writeLong(moovOffset);
+        dos.writeLong(moovSize);
+        dos.writeLong(sidxOffset);
+        dos.writeLong(sidxSize);
+        dos.writeBoolean(segmented);
+        dos.writeLong(firstDecodeTime);
+
+        dos.writeLong(referenceTimescale);
+        dos.writeInt(referenceSizes.length);
+        for (int i = 0; i < referenceSizes.length; i++) {
+            dos.writeLong(referenceOffsets[i]);
+            dos.writeInt((int) referenceSizes[i]);
+            dos.writeInt((int) referenceDurations[i]);
+        }
+        dos.writeInt(moofSizes.length);
+        for (int i = 0; i < moofSizes.length; i++) {
+            dos.writeInt((int) moofSizes[i]);
+            dos.writeInt(fragmentSampleCounts[i]);
+        }
+        dos.writeInt(sampleSizes.length);
+        for (int i = 0; i < sampleSizes.length; i++) {
+            dos.writeInt((int) sampleSizes[i]);
+            dos.writeInt((int) sampleDurations[i]);
+        }
+    }
+
+    /**
+     * @param sidecarLength bounds the entry counts, so a corrupt count doesn't allocate huge arrays
+     */
+    private void read(DataInputStream dis, long sidecarLength) throws IOException {
+        trackId = dis.readLong();
+        handler = readString(dis);
+        codecs = readString(dis);
+        language = readString(dis);
+        assetId = readString(dis);
+        movieTimescale = dis.readLong();
+        mediaTimescale = dis.readLong();
+        fragmentDuration = dis.readLong();
+        width = dis.readLong();
+        height = dis.readLong();
+        sampleRate = dis.readLong();
+        channelConfigurationSchemeIdUri = readString(dis);
+        channelConfigurationValue = readString(dis);
+        String kid = readString(dis);
+        keyId = kid != null ? UUID.fromString(kid) : null;
+        fileSize = dis.readLong();
+        moovOffset = dis.readLong();
+        moovSize = dis.readLong();
+        sidxOffset = dis.readLong();
+        sidxSize = dis.readLong();
+        segmented = dis.readBoolean();
+        firstDecodeTime = dis.readLong();
+
+        referenceTimescale = dis.readLong();
+        int references = readCount(dis, 16, sidecarLength);
+        referenceOffsets = new long[references];
+        referenceSizes = new long[references];
+        referenceDurations = new long[references];
+        for (int i = 0; i < references; i++) {
+            referenceOffsets[i] = dis.readLong();
+            referenceSizes[i] = dis.readInt() & 0xffffffffL;
+            referenceDurations[i] = dis.readInt() & 0xffffffffL;
+        }
+        int fragments = readCount(dis, 8, sidecarLength);
+        moofSizes = new long[fragments];
+        fragmentSampleCounts = new int[fragments];
+        for (int i = 0; i < fragments; i++) {
+            moofSizes[i] = dis.readInt() & 0xffffffffL;
+            fragmentSampleCounts[i] = dis.readInt();
+        }
+        int samples = readCount(dis, 8, sidecarLength);
+        sampleSizes = new long[samples];
+        sampleDurations = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            sampleSizes[i] = dis.readInt() & 0xffffffffL;
+            sampleDurations[i] = dis.readInt() & 0xffffffffL;
+        }
+    }
+
+    /**
+     * @param entrySize bytes per entry in the sidecar
+     */
+    private static int readCount(DataInputStream dis, int entrySize, long sidecarLength) throws IOException {
+        int count = dis.readInt();
+        if (count < 0 || (long) count * entrySize > sidecarLength) {
+            throw new IOException("Invalid entry count " + count);
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        dos.writeBoolean(s != null);
+        if (s != null) {
+            dos.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        return dis.readBoolean() ? dis.readUTF() : null;
+    }
+
+    /**
+     * CRC32 of the file's first bytes. These contain ftyp, moov and sidx and therefore change with any
+     * change to the content.
+     */
+    private static long checksum(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[(int) Math.min(CHECKSUM_LENGTH, file.length())];
+            int read = 0;
+            while (read < buffer.length) {
+                int n = is.read(buffer, read, buffer.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            CRC32 crc32 = new CRC32();
+            crc32.update(buffer, 0, read);
+            return crc32.getValue();
+        } finally {
+            is.close();
+        }
+    }
+
+    public long getTrackId() {
+        return trackId;
+    }
+
+    public String getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return RFC 6381 codec string of audio and video tracks
+     */
+    public String getCodecs() {
+        return codecs;
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    /**
+     * @return the <code>urn:dece:asset_id</code> of the cinf box
+     */
+    public String getAssetId() {
+        return assetId;
+    }
+
+    /**
+     * @return mvhd timescale
+     */
+    public long getMovieTimescale() {
+        return movieTimescale;
+    }
+
+    /**
+     * @return mdhd timescale - the timescale of sample durations
+     */
+    public long getMediaTimescale() {
+        return mediaTimescale;
+    }
+
+    /**
+     * @return mehd fragment duration in movie timescale
+     */
+    public long getFragmentDuration() {
+        return fragmentDuration;
+    }
+
+    public double getDurationInSeconds() {
+        return (double) fragmentDuration / movieTimescale;
+    }
+
+    public long getWidth() {
+        return width;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    public long getSampleRate() {
+        return sampleRate;
+    }
+
+    public String getChannelConfigurationSchemeIdUri() {
+        return channelConfigurationSchemeIdUri;
+    }
+
+    public String getChannelConfigurationValue() {
+        return channelConfigurationValue;
+    }
+
+    /**
+     * @return the default KID of an encrypted video track or <code>null</code>
+     */
+    public UUID getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * @return true if the fragments are stored in separate media segments
+     */
+    public boolean isSegmented() {
+        return segmented;
+    }
+
+    /**
+     * @return tfdt of the first fragment
+     */
+    public long getFirstDecodeTime() {
+        return firstDecodeTime;
+    }
+
+    /**
+     * @return sum of all top-level box sizes (including all media segments)
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return offset of the moov box or -1 if there is none
+     */
+    public long getMoovOffset() {
+        return moovOffset;
+    }
+
+    public long getMoovSize() {
+        return moovSize;
+    }
+
+    /**
+     * @return offset of the first (top-level) sidx box or -1 if there is none
+     */
+    public long getSidxOffset() {
+        return sidxOffset;
+    }
+
+    public long getSidxSize() {
+        return sidxSize;
+    }
+
+    /**
+     * @return timescale of the segment index
+     */
+    public long getReferenceTimescale() {
+        return referenceTimescale;
+    }
+
+    /**
+     * @return file offsets of the media references in the segment index(es) in file order
+     */
+    public long[] getReferenceOffsets() {
+        return referenceOffsets;
+    }
+
+    /**
+     * @return sizes of the media references in the segment index(es) in file order
+     */
+    public long[] getReferenceSizes() {
+        return referenceSizes;
+    }
+
+    public long[] getReferenceDurations() {
+        return referenceDurations;
+    }
+
+    public long[] getMoofSizes() {
+        return moofSizes;
+    }
+
+    public int[] getFragmentSampleCounts() {
+        return fragmentSampleCounts;
+    }
+
+    /**
+     * @return duration of each fragment in media timescale
+     */
+    public long[] getFragmentDurations() {
+        long[] durations = new long[fragmentSampleCounts.length];
+        int sample = 0;
+        for (int i = 0; i < durations.length; i++) {
+            for (int j = 0; j < fragmentSampleCounts[i]; j++) {
+                durations[i] += sampleDurations[sample++];
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * @return sample sizes of all fragments with tfhd and trex defaults resolved
+     */
+    public long[] getSampleSizes() {
+        return sampleSizes;
+    }
+
+    /**
+     * @return sample durations (media timescale) of all fragments with tfhd and trex defaults resolved
+     */
+    public long[] getSampleDurations() {
+        return sampleDurations;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.manifest;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+import static com.castlabs.csf.manifest.ManifestHelper.getFramesPerSecond;
+
+/**
+ * Writes HLS (fMP4) playlists for the files of a {@link ManifestWriterImpl}: a master playlist and one media
+ * playlist per file. Single files are addressed with <code>EXT-X-BYTERANGE</code>s taken from the segment index,
+ * the init range spans ftyp and moov. Segmented outputs list their init and media segments. Everything is taken
+ * from the {@link FileIndex}es the MPD is made of, no file is read again.
+ * <p>
+ * Audio renditions are grouped by codec. Each video file is listed once per audio group. Subtitles are not
+ * supported as HLS only knows WebVTT.
+ */
+public class HlsPlaylistWriter {
+    private static final String MASTER_PLAYLIST = "master.m3u8";
+    private static final int VERSION = 7;
+
+    private final ManifestWriterImpl manifestWriter;
+    private final Logger logger;
+
+    public HlsPlaylistWriter(ManifestWriterImpl manifestWriter, Logger logger) {
+        this.manifestWriter = manifestWriter;
+        this.logger = logger;
+    }
+
+    /**
+     * @return name of the media playlist of the given file - the full file name, <code>title.uvv</code> and
+     * <code>title.uva</code> get a playlist each
+     */
+    public static String getMediaPlaylistName(String filename) {
+        return filename + ".m3u8";
+    }
+
+    /**
+     * Writes <code>master.m3u8</code> and all media playlists into the directory.
+     *
+     * @throws RuntimeException if two files would write the same playlist
+     */
+    public void write(File directory) throws IOException {
+        Set<String> playlists = new HashSet<String>();
+        playlists.add(MASTER_PLAYLIST);
+        for (Map<String, FileIndex> group : manifestWriter.getGroups().values()) {
+            for (String filename : group.keySet()) {
+                if (!playlists.add(getMediaPlaylistName(filename))) {
+                    throw new RuntimeException("More than one input file would write " + getMediaPlaylistName(filename));
+                }
+            }
+        }
+        Map<String, FileIndex> video = new LinkedHashMap<String, FileIndex>();
+        Map<String, Map<String, FileIndex>> audioGroups = new LinkedHashMap<String, Map<String, FileIndex>>();
+        for (Map<String, FileIndex> group : manifestWriter.getGroups().values()) {
+            for (Map.Entry<String, FileIndex> e : group.entrySet()) {
+                String handler = e.getValue().getHandler();
+                if (handler.equals("vide")) {
+                    video.put(e.getKey(), e.getValue());
+                } else if (handler.equals("soun")) {
+                    String groupId = "audio-" + e.getValue().getCodecs();
+                    Map<String, FileIndex> audio = audioGroups.get(groupId);
+                    if (audio == null) {
+                        audio = new LinkedHashMap<String, FileIndex>();
+                        audioGroups.put(groupId, audio);
+                    }
+                    audio.put(e.getKey(), e.getValue());
+                } else {
+                    logger.warning("Skipping " + e.getKey() + " - HLS only supports WebVTT subtitles");
+                    continue;
+                }
+                if (e.getValue().getKeyId() != null) {
+                    logger.warning(getMediaPlaylistName(e.getKey()) + " has no EXT-X-KEY - key delivery must be configured in the player");
+                }
+                writeMediaPlaylist(new File(directory, getMediaPlaylistName(e.getKey())), e.getKey(), e.getValue());
+            }
+        }
+        writeMasterPlaylist(new File(directory, MASTER_PLAYLIST), video, audioGroups);
+    }
+
+    private void writeMasterPlaylist(File playlist, Map<String, FileIndex> video, Map<String, Map<String, FileIndex>> audioGroups) throws IOException {
+        PrintWriter pw = open(playlist);
+        try {
+            pw.println("#EXTM3U");
+            pw.println("#EXT-X-VERSION:" + VERSION);
+            pw.println("#EXT-X-INDEPENDENT-SEGMENTS");
+            for (Map.Entry<String, Map<String, FileIndex>> audioGroup : audioGroups.entrySet()) {
+                boolean first = true;
+                for (Map.Entry<String, FileIndex> e : audioGroup.getValue().entrySet()) {
+                    pw.println(String.format("#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"%s\",LANGUAGE=\"%s\",NAME=\"%s\",DEFAULT=%s,AUTOSELECT=YES,URI=\"%s\"",
+                            audioGroup.getKey(), e.getValue().getLanguage(), FilenameUtils.getBaseName(e.getKey()),
+                            first ? "YES" : "NO", getMediaPlaylistName(e.getKey())));
+                    first = false;
+                }
+            }
+            if (video.isEmpty()) {
+                // audio only
+                for (Map<String, FileIndex> audioGroup : audioGroups.values()) {
+                    for (Map.Entry<String, FileIndex> e : audioGroup.entrySet()) {
+                        pw.println(String.format("#EXT-X-STREAM-INF:BANDWIDTH=%d,CODECS=\"%s\"",
+                                manifestWriter.getBandwidth(e.getValue()), e.getValue().getCodecs()));
+                        pw.println(getMediaPlaylistName(e.getKey()));
+                    }
+                }
+            }
+            for (Map.Entry<String, FileIndex> e : video.entrySet()) {
+                FileIndex track = e.getValue();
+                String attributes = String.format(Locale.ENGLISH, "RESOLUTION=%dx%d,FRAME-RATE=%.3f",
+                        track.getWidth(), track.getHeight(), getFramesPerSecond(track));
+                if (audioGroups.isEmpty()) {
+                    pw.println(String.format("#EXT-X-STREAM-INF:BANDWIDTH=%d,CODECS=\"%s\",%s",
+                            manifestWriter.getBandwidth(track), track.getCodecs(), attributes));
+                    pw.println(getMediaPlaylistName(e.getKey()));
+                }
+                for (Map.Entry<String, Map<String, FileIndex>> audioGroup : audioGroups.entrySet()) {
+                    long maxAudioBandwidth = 0;
+                    for (FileIndex audio : audioGroup.getValue().values()) {
+                        maxAudioBandwidth = Math.max(maxAudioBandwidth, manifestWriter.getBandwidth(audio));
+                    }
+                    pw.println(String.format("#EXT-X-STREAM-INF:BANDWIDTH=%d,CODECS=\"%s,%s\",%s,AUDIO=\"%s\"",
+                            manifestWriter.getBandwidth(track) + maxAudioBandwidth, track.getCodecs(),
+                            audioGroup.getValue().values().iterator().next().getCodecs(), attributes, audioGroup.getKey()));
+                    pw.println(getMediaPlaylistName(e.getKey()));
+                }
+            }
+        } finally {
+            pw.close();
+        }
+        checkError(pw, playlist);
+    }
+
+    private void writeMediaPlaylist(File playlist, String filename, FileIndex track) throws IOException {
+        long[] durations;
+        long timescale;
+        if (track.isSegmented()) {
+            durations = track.getFragmentDurations();
+            timescale = track.getMediaTimescale();
+        } else {
+            durations = track.getReferenceDurations();
+            timescale = track.getReferenceTimescale();
+        }
+        long maxDuration = 0;
+        for (long duration : durations) {
+            maxDuration = Math.max(maxDuration, duration);
+        }
+
+        PrintWriter pw = open(playlist);
+        try {
+            pw.println("#EXTM3U");
+            pw.println("#EXT-X-VERSION:" + VERSION);
+            pw.println("#EXT-X-TARGETDURATION:" + (long) Math.ceil((double) maxDuration / timescale));
+            pw.println("#EXT-X-PLAYLIST-TYPE:VOD");
+            pw.println("#EXT-X-INDEPENDENT-SEGMENTS");
+            if (track.isSegmented()) {
+                pw.println(String.format("#EXT-X-MAP:URI=\"%s\"", filename));
+            } else {
+                // ftyp and moov
+                pw.println(String.format("#EXT-X-MAP:URI=\"%s\",BYTERANGE=\"%d@0\"", filename, track.getMoovOffset() + track.getMoovSize()));
+            }
+            for (int i = 0; i < durations.length; i++) {
+                pw.println(String.format(Locale.ENGLISH, "#EXTINF:%.5f,", (double) durations[i] / timescale));
+                if (track.isSegmented()) {
+                    pw.println(FileIndex.getMediaSegment(new File(filename), i + 1).getName());
+                } else {
+                    pw.println(String.format("#EXT-X-BYTERANGE:%d@%d", track.getReferenceSizes()[i], track.getReferenceOffsets()[i]));
+                    pw.println(filename);
+                }
+            }
+            pw.println("#EXT-X-ENDLIST");
+        } finally {
+            pw.close();
+        }
+        checkError(pw, playlist);
+    }
+
+    private static PrintWriter open(File playlist) throws IOException {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(playlist), "UTF-8")));
+    }
+
+    private static void checkError(PrintWriter pw, File playlist) throws IOException {
+        if (pw.checkError()) {
+            throw new IOException("Cannot write " + playlist);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.manifest;
+
+import com.coremedia.iso.BoxParser;
+import com.coremedia.iso.IsoTypeReader;
+import com.coremedia.iso.PropertyBoxParserImpl;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.Container;
+import com.googlecode.mp4parser.BasicContainer;
+import com.googlecode.mp4parser.DataSource;
+import com.googlecode.mp4parser.FileDataSourceImpl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+
+/**
+ * Reads only what a manifest needs from a (CFF) MP4 file. The top-level boxes are scanned by their headers,
+ * ftyp, moov and sidx are parsed completely. All other top-level boxes (moof, mdat, mfra, ...) are represented by
+ * placeholders that know type, size and offset only. Their contents are parsed on request with
+ * {@link #parse(Box)}; the parsed box is not kept.
+ */
+public class LazyIsoFile extends BasicContainer implements Closeable {
+    private static final Set<String> PARSED_TYPES = new HashSet<String>(Arrays.asList("ftyp", "moov", "sidx"));
+
+    private final String name;
+    private final DataSource dataSource;
+    private final BoxParser boxParser = new PropertyBoxParserImpl();
+    private final Map<Box, Long> offsets = new IdentityHashMap<Box, Long>();
+
+    public LazyIsoFile(File file) throws IOException {
+        this.name = file.getName();
+        this.dataSource = new FileDataSourceImpl(file);
+        List<Box> boxes = new ArrayList<Box>();
+        long fileSize = dataSource.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (offset + 8 <= fileSize) {
+            header.clear();
+            dataSource.position(offset);
+            dataSource.read(header);
+            header.flip();
+            long size = IsoTypeReader.readUInt32(header);
+            String type = IsoTypeReader.read4cc(header);
+            if (size == 1) {
+                size = IsoTypeReader.readUInt64(header);
+            } else if (size == 0) {
+                size = fileSize - offset;
+            }
+            if (size < 8) {
+                throw new IOException(name + ": invalid size " + size + " of " + type + " box at " + offset);
+            }
+            Box box;
+            if (PARSED_TYPES.contains(type)) {
+                dataSource.position(offset);
+                box = boxParser.parseBox(dataSource, this);
+            } else {
+                box = new UnparsedBox(type, size, offset);
+            }
+            box.setParent(this);
+            offsets.put(box, offset);
+            boxes.add(box);
+            offset += size;
+        }
+        setBoxes(boxes);
+    }
+
+    /**
+     * @return the position of the top-level box within the file
+     */
+    public long getOffset(Box box) {
+        Long offset = offsets.get(box);
+        if (offset == null) {
+            throw new RuntimeException(box.getType() + " is not a top-level box of " + name);
+        }
+        return offset;
+    }
+
+    /**
+     * Parses a top-level box that has only been scanned. Boxes parsed when the file was opened are returned as is.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Box> T parse(Box box) throws IOException {
+        if (!(box instanceof UnparsedBox)) {
+            return (T) box;
+        }
+        dataSource.position(getOffset(box));
+        return (T) boxParser.parseBox(dataSource, this);
+    }
+
+    /**
+     * Parses the first top-level box of the given type.
+     *
+     * @return the parsed box or <code>null</code> if there is no such box
+     */
+    public <T extends Box> T parseFirst(String type) throws IOException {
+        for (Box box : getBoxes()) {
+            if (box.getType().equals(type)) {
+                return parse(box);
+            }
+        }
+        return null;
+    }
+
+    public void close() throws IOException {
+        dataSource.close();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private class UnparsedBox implements Box {
+        private final String type;
+        private final long size;
+        private final long offset;
+        private Container parent;
+
+        UnparsedBox(String type, long size, long offset) {
+            this.type = type;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        public Container getParent() {
+            return parent;
+        }
+
+        public void setParent(Container parent) {
+            this.parent = parent;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void getBox(WritableByteChannel writableByteChannel) throws IOException {
+            dataSource.transferTo(offset, size, writableByteChannel);
+        }
+
+        public void parse(DataSource dataSource, ByteBuffer header, long contentSize, BoxParser boxParser) throws IOException {
+            // the box is a header-only placeholder - LazyIsoFile.parse(Box) reads its content
+            throw new IllegalStateException("Unparsed " + type + " box at offset " + offset + " of " + name +
+                    " cannot be parsed in place, use LazyIsoFile.parse(Box)");
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.manifest;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+import static com.castlabs.csf.manifest.ManifestHelper.convertFramerate;
+import static com.castlabs.csf.manifest.ManifestHelper.getFramesPerSecond;
+
+/**
+ * Writes the manifest of a {@link ManifestWriterImpl} directly to a stream. No document tree is built and no
+ * schema types are loaded. This is the only MPD serializer, <code>--validate</code> checks its output against the
+ * schema.
+ */
+public class ManifestStreamWriter {
+    private static final String MPD_NS = "urn:mpeg:dash:schema:mpd:2011";
+    private static final String CENC_NS = "urn:mpeg:cenc:2013";
+    private static final String INDENT = "  ";
+
+    private final ManifestWriterImpl manifestWriter;
+    private XMLStreamWriter writer;
+    private int depth;
+
+    public ManifestStreamWriter(ManifestWriterImpl manifestWriter) {
+        this.manifestWriter = manifestWriter;
+    }
+
+    private static class AdaptationSet {
+        final int group;
+        final long id;
+        final Map<String, FileIndex> files;
+        final UUID keyId;
+
+        AdaptationSet(int group, long id, Map<String, FileIndex> files, UUID keyId) {
+            this.group = group;
+            this.id = id;
+            this.files = files;
+            this.keyId = keyId;
+        }
+    }
+
+    public void write(OutputStream os) throws IOException {
+        List<AdaptationSet> adaptationSets = new ArrayList<AdaptationSet>();
+        boolean encrypted = false;
+        for (Map.Entry<Integer, Map<String, FileIndex>> group : manifestWriter.getGroups().entrySet()) {
+            for (Map.Entry<Long, Map<String, FileIndex>> e : manifestWriter.getAdaptationSets(group.getValue(), group.getKey()).entrySet()) {
+                UUID keyId = manifestWriter.getDefaultKeyId(e.getValue().values());
+                encrypted |= keyId != null;
+                adaptationSets.add(new AdaptationSet(group.getKey(), e.getKey(), e.getValue(), keyId));
+            }
+        }
+        String duration = manifestWriter.getDuration().toString();
+
+        try {
+            writer = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+            depth = 0;
+            writer.writeStartDocument("UTF-8", "1.0");
+            startElement("MPD");
+            writer.writeAttribute("profiles", manifestWriter.getProfile());
+            writer.writeAttribute("type", "static");
+            writer.writeAttribute("minBufferTime", manifestWriter.getCachedMinBufferTime().toString());
+            writer.writeAttribute("mediaPresentationDuration", duration);
+            writer.writeDefaultNamespace(MPD_NS);
+            if (encrypted) {
+                writer.writeNamespace("cenc", CENC_NS);
+            }
+
+            emptyElement("ProgramInformation");
+            writer.writeAttribute("moreInformationURL", "www.castLabs.com");
+
+            startElement("Period");
+            writer.writeAttribute("id", "0");
+            writer.writeAttribute("start", "PT0S");
+            writer.writeAttribute("duration", duration);
+            for (AdaptationSet adaptationSet : adaptationSets) {
+                writeAdaptationSet(adaptationSet);
+            }
+            endElement();
+
+            endElement();
+            writer.writeEndDocument();
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void writeAdaptationSet(AdaptationSet adaptationSet) throws XMLStreamException, IOException {
+        Collection<FileIndex> files = adaptationSet.files.values();
+        startElement("AdaptationSet");
+        writer.writeAttribute("segmentAlignment", "true");
+        writer.writeAttribute("startWithSAP", "1");
+        writer.writeAttribute("lang", manifestWriter.getLanguage(files));
+        writer.writeAttribute("bitstreamSwitching", "true");
+        writer.writeAttribute("mimeType", manifestWriter.getMimeType(files));
+        writer.writeAttribute("id", String.valueOf(adaptationSet.id));
+        writer.writeAttribute("group", String.valueOf(adaptationSet.group));
+        if ("vide".equals(files.iterator().next().getHandler())) {
+            double maxFrameRate = 0;
+            long maxWidth = 0;
+            long maxHeight = 0;
+            for (FileIndex file : files) {
+                maxFrameRate = Math.max(maxFrameRate, getFramesPerSecond(file));
+                maxWidth = Math.max(maxWidth, file.getWidth());
+                maxHeight = Math.max(maxHeight, file.getHeight());
+            }
+            writer.writeAttribute("maxFrameRate", convertFramerate(maxFrameRate));
+            writer.writeAttribute("maxWidth", String.valueOf(maxWidth));
+            writer.writeAttribute("maxHeight", String.valueOf(maxHeight));
+            writer.writeAttribute("par", "1:1");
+        }
+
+        if (adaptationSet.keyId != null) {
+            emptyElement("ContentProtection");
+            writer.writeAttribute("cenc", CENC_NS, "default_KID", adaptationSet.keyId.toString());
+            writer.writeAttribute("schemeIdUri", "urn:mpeg:dash:mp4protection:2011");
+            writer.writeAttribute("value", "cenc");
+        }
+
+        for (Map.Entry<String, FileIndex> e : adaptationSet.files.entrySet()) {
+            writeRepresentation(e.getKey(), e.getValue());
+        }
+        endElement();
+    }
+
+    private void writeRepresentation(String filename, FileIndex track) throws XMLStreamException, IOException {
+        startElement("Representation");
+        writer.writeAttribute("id", track.getAssetId());
+
+        String handler = track.getHandler();
+        if (handler.equals("vide")) {
+            writer.writeAttribute("codecs", track.getCodecs());
+            writer.writeAttribute("width", String.valueOf(track.getWidth()));
+            writer.writeAttribute("height", String.valueOf(track.getHeight()));
+            writer.writeAttribute("frameRate", convertFramerate(getFramesPerSecond(track)));
+            writer.writeAttribute("sar", "1:1");
+        }
+        if (handler.equals("soun")) {
+            writer.writeAttribute("codecs", track.getCodecs());
+            writer.writeAttribute("audioSamplingRate", String.valueOf(track.getSampleRate()));
+        }
+        writer.writeAttribute("bandwidth", String.valueOf(manifestWriter.getBandwidth(track)));
+
+        if (handler.equals("soun")) {
+            emptyElement("AudioChannelConfiguration");
+            writer.writeAttribute("schemeIdUri", track.getChannelConfigurationSchemeIdUri());
+            writer.writeAttribute("value", track.getChannelConfigurationValue());
+        }
+
+        if (track.isSegmented()) {
+            writeSegmentTemplate(filename, track);
+        } else {
+            indent();
+            writer.writeStartElement("BaseURL");
+            writer.writeCharacters(filename);
+            writer.writeEndElement();
+
+            startElement("SegmentBase");
+            writer.writeAttribute("timescale", String.valueOf(manifestWriter.getTimescale(track)));
+            writer.writeAttribute("indexRangeExact", "true");
+            writer.writeAttribute("indexRange", manifestWriter.getIndexRange(track));
+            String initializationRange = manifestWriter.getInitializationRange(track);
+            emptyElement("Initialization");
+            if (initializationRange != null) {
+                writer.writeAttribute("range", initializationRange);
+            }
+            endElement();
+        }
+
+        endElement();
+    }
+
+    private void writeSegmentTemplate(String filename, FileIndex track) throws XMLStreamException {
+        SegmentTimeline timeline = new SegmentTimeline(track);
+        startElement("SegmentTemplate");
+        writer.writeAttribute("timescale", String.valueOf(timeline.getTimescale()));
+        writer.writeAttribute("media", FileIndex.getMediaSegmentTemplate(filename));
+        writer.writeAttribute("initialization", filename);
+        writer.writeAttribute("startNumber", "1");
+        startElement("SegmentTimeline");
+        for (SegmentTimeline.Entry entry : timeline.getEntries()) {
+            emptyElement("S");
+            if (entry.t >= 0) {
+                writer.writeAttribute("t", String.valueOf(entry.t));
+            }
+            writer.writeAttribute("d", String.valueOf(entry.d));
+            if (entry.r > 0) {
+                writer.writeAttribute("r", String.valueOf(entry.r));
+            }
+        }
+        endElement();
+        endElement();
+    }
+
+    private void indent() throws XMLStreamException {
+        StringBuilder sb = new StringBuilder("\n");
+        for (int i = 0; i < depth; i++) {
+            sb.append(INDENT);
+        }
+        writer.writeCharacters(sb.toString());
+    }
+
+    private void startElement(String localName) throws XMLStreamException {
+        indent();
+        writer.writeStartElement(localName);
+        depth++;
+    }
+
+    private void emptyElement(String localName) throws XMLStreamException {
+        indent();
+        writer.writeEmptyElement(localName);
+    }
+
+    private void endElement() throws XMLStreamException {
+        depth--;
+        indent();
+        writer.writeEndElement();
+    }
+}
@@ -5,45 +5,68 @@
  */
 package com.castlabs.csf.manifest;
 
-import com.coremedia.iso.IsoFile;
-import com.coremedia.iso.boxes.*;
-import com.coremedia.iso.boxes.fragment.*;
-import com.googlecode.mp4parser.boxes.basemediaformat.TrackEncryptionBox;
-import com.googlecode.mp4parser.util.Path;
-import mpegCenc2013.DefaultKIDAttribute;
-import mpegDashSchemaMpd2011.*;
 import org.apache.xmlbeans.GDuration;
 
 import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static com.castlabs.csf.manifest.ManifestHelper.createRepresentation;
-
 
 /**
- * Creates a single SIDX manifest.
+ * Collects the files of a single SIDX manifest and derives everything the manifest needs from them: adaptation sets,
+ * bandwidths, minBufferTime and profile. {@link ManifestStreamWriter} writes the MPD.
  */
 public class ManifestWriterImpl {
-    Map<String, IsoFile> primaryVideo = new HashMap<String, IsoFile>();
-    Map<String, IsoFile> secondaryVideo = new HashMap<String, IsoFile>();
-    Map<String, IsoFile> mainAudio = new HashMap<String, IsoFile>();
-    Map<String, IsoFile> secondaryAudio = new HashMap<String, IsoFile>();
-    Map<String, IsoFile> tertiaryAudio = new HashMap<String, IsoFile>();
-    Map<String, IsoFile> mainSubtitle = new HashMap<String, IsoFile>();
-    Map<String, IsoFile> secondarySubtitle = new HashMap<String, IsoFile>();
+    Map<String, FileIndex> primaryVideo = new HashMap<String, FileIndex>();
+    Map<String, FileIndex> secondaryVideo = new HashMap<String, FileIndex>();
+    Map<String, FileIndex> mainAudio = new HashMap<String, FileIndex>();
+    Map<String, FileIndex> secondaryAudio = new HashMap<String, FileIndex>();
+    Map<String, FileIndex> tertiaryAudio = new HashMap<String, FileIndex>();
+    Map<String, FileIndex> mainSubtitle = new HashMap<String, FileIndex>();
+    Map<String, FileIndex> secondarySubtitle = new HashMap<String, FileIndex>();
     Logger logger;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean peakBandwidth = false;
+    double bandwidthWindow = -1;
+    Double minBufferTimeInSeconds;
+    Map<FileIndex, Long> bandwidths;
 
     public ManifestWriterImpl(List<File> files, Logger logger) throws IOException {
+        this(files, logger, true);
+    }
+
+    /**
+     * @param useIndexCache read the files' {@link FileIndex} sidecars if they are valid and (re)write them otherwise
+     */
+    public ManifestWriterImpl(List<File> files, Logger logger, boolean useIndexCache) throws IOException {
+        this(files, logger, useIndexCache, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param useIndexCache read the files' {@link FileIndex} sidecars if they are valid and (re)write them otherwise
+     * @param threads       number of files indexed and analyzed in parallel
+     */
+    public ManifestWriterImpl(List<File> files, Logger logger, final boolean useIndexCache, int threads) throws IOException {
         this.logger = logger;
-        for (File file : files) {
-            IsoFile uv = new IsoFile(file.getAbsolutePath());
-            assert Path.getPaths(uv, "moov[0]/trak").size() == 1 : "Only one track per file allowed";
-            TrackHeaderBox tkhd = (TrackHeaderBox) Path.getPath(uv, "moov[0]/trak[0]/tkhd[0]");
-            long t = tkhd.getTrackId();
+        this.threads = threads;
+        List<Callable<FileIndex>> tasks = new ArrayList<Callable<FileIndex>>();
+        for (final File file : files) {
+            tasks.add(new Callable<FileIndex>() {
+                public FileIndex call() throws Exception {
+                    return loadIndex(file, useIndexCache);
+                }
+            });
+        }
+        // indexes come back in input order - the maps are filled exactly as if the files were read one by one
+        List<FileIndex> indexes = OrderedTasks.run(threads, tasks);
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            FileIndex uv = indexes.get(i);
+            long t = uv.getTrackId();
             String template = "Adding %30s to %16s - trackId = %d";
             if (t < 50) {
                 primaryVideo.put(file.getName(), uv);
@@ -72,287 +95,289 @@ public class ManifestWriterImpl {
 
     }
 
-
-    protected Collection<Container> getAllSingleTrackFiles() {
-        Set<Container> containers = new HashSet<Container>();
-        containers.addAll(primaryVideo.values());
-        containers.addAll(secondaryVideo.values());
-        containers.addAll(mainAudio.values());
-        containers.addAll(secondaryAudio.values());
-        containers.addAll(tertiaryAudio.values());
-        containers.addAll(mainSubtitle.values());
-        containers.addAll(secondarySubtitle.values());
-        return containers;
-    }
-
-    protected void createPeriod(PeriodType periodType) throws IOException {
-
-        double maxDurationInSeconds = -1;
-
-        maxDurationInSeconds = createAdaptationSet(periodType, maxDurationInSeconds, primaryVideo, 1);
-        if (!secondaryVideo.isEmpty()) {
-            maxDurationInSeconds = createAdaptationSet(periodType, maxDurationInSeconds, secondaryVideo, 2);
-        }
-        if (!mainAudio.isEmpty()) {
-            maxDurationInSeconds = createAdaptationSet(periodType, maxDurationInSeconds, mainAudio, 5);
-        }
-        if (!secondaryAudio.isEmpty()) {
-            maxDurationInSeconds = createAdaptationSet(periodType, maxDurationInSeconds, secondaryAudio, 6);
-        }
-        if (!tertiaryAudio.isEmpty()) {
-            maxDurationInSeconds = createAdaptationSet(periodType, maxDurationInSeconds, tertiaryAudio, 7);
-        }
-        if (!mainSubtitle.isEmpty()) {
-            maxDurationInSeconds = createAdaptationSet(periodType, maxDurationInSeconds, mainSubtitle, 3);
+    private FileIndex loadIndex(File file, boolean useIndexCache) throws IOException {
+        if (useIndexCache) {
+            FileIndex index = FileIndex.readSidecar(file);
+            if (index != null) {
+                logger.fine("Using index " + FileIndex.getSidecar(file));
+                return index;
+            }
         }
-        if (!secondarySubtitle.isEmpty()) {
-            maxDurationInSeconds = createAdaptationSet(periodType, maxDurationInSeconds, secondarySubtitle, 4);
+        FileIndex index = FileIndex.build(file);
+        if (useIndexCache) {
+            try {
+                index.writeSidecar(file);
+            } catch (IOException e) {
+                logger.warning("Cannot write index " + FileIndex.getSidecar(file) + ": " + e.getMessage());
+            }
         }
-        //adaptationSetVid.setPar();
+        return index;
+    }
 
-        periodType.setDuration(new GDuration(
-                1, 0, 0, 0, (int) (maxDurationInSeconds / 3600),
-                (int) ((maxDurationInSeconds % 3600) / 60),
-                (int) (maxDurationInSeconds % 60), BigDecimal.ZERO));
 
+    /**
+     * @return all files in the order they appear in the manifest
+     */
+    protected Collection<FileIndex> getAllSingleTrackFiles() {
+        Set<FileIndex> containers = new LinkedHashSet<FileIndex>();
+        for (Map<String, FileIndex> files : getGroups().values()) {
+            containers.addAll(files.values());
+        }
+        return containers;
+    }
 
+    /**
+     * The on-demand profile only allows single indexed files addressed with SegmentBase. Segmented outputs are
+     * addressed with SegmentTemplate and require the live profile.
+     *
+     * @return the MPD@profiles value
+     */
+    protected String getProfile() {
+        for (FileIndex file : getAllSingleTrackFiles()) {
+            if (file.isSegmented()) {
+                return "urn:mpeg:dash:profile:isoff-live:2011";
+            }
+        }
+        return "urn:mpeg:dash:profile:isoff-on-demand:2011";
     }
 
+    /**
+     * @return group ID to files of that group in the order the groups appear in the manifest
+     */
+    protected Map<Integer, Map<String, FileIndex>> getGroups() {
+        Map<Integer, Map<String, FileIndex>> groups = new LinkedHashMap<Integer, Map<String, FileIndex>>();
+        groups.put(1, primaryVideo);
+        groups.put(2, secondaryVideo);
+        groups.put(5, mainAudio);
+        groups.put(6, secondaryAudio);
+        groups.put(7, tertiaryAudio);
+        groups.put(3, mainSubtitle);
+        groups.put(4, secondarySubtitle);
+        return groups;
+    }
 
-    private double createAdaptationSet(PeriodType periodType, double maxDurationInSeconds, Map<String, IsoFile> files, int group) {
+    /**
+     * Splits the files of a group into one AdaptationSet per track ID.
+     *
+     * @return track ID (= AdaptationSet ID) to the files of the AdaptationSet
+     */
+    protected Map<Long, Map<String, FileIndex>> getAdaptationSets(Map<String, FileIndex> files, int group) {
         Set<Long> trackIds = new HashSet<Long>();
-        for (IsoFile isoFile : files.values()) {
+        for (FileIndex isoFile : files.values()) {
             // get all trackIDs
-            TrackHeaderBox tkhd = (TrackHeaderBox) Path.getPath(isoFile, "moov[0]/trak[0]/tkhd[0]");
-            trackIds.add(tkhd.getTrackId());
+            trackIds.add(isoFile.getTrackId());
         }
+        Map<Long, Map<String, FileIndex>> adaptationSets = new LinkedHashMap<Long, Map<String, FileIndex>>();
         for (Long trackId : trackIds) {
             // one adaptationset per trackId - iterate over all trackId
 
-            Map<String, IsoFile> tracksWithCurrentTracksId = new HashMap<String, IsoFile>();
+            Map<String, FileIndex> tracksWithCurrentTracksId = new HashMap<String, FileIndex>();
             logger.info("Starting AdaptationSet");
-            for (Map.Entry<String, IsoFile> stringIsoFileEntry : files.entrySet()) {
+            for (Map.Entry<String, FileIndex> stringIsoFileEntry : files.entrySet()) {
                 // find all tracks with current track id
-                TrackHeaderBox tkhd = (TrackHeaderBox) Path.getPath(stringIsoFileEntry.getValue(), "moov[0]/trak[0]/tkhd[0]");
-                if (tkhd.getTrackId() == trackId) {
+                if (stringIsoFileEntry.getValue().getTrackId() == trackId) {
                     tracksWithCurrentTracksId.put(stringIsoFileEntry.getKey(), stringIsoFileEntry.getValue());
                     logger.info(String.format("-- Adding %25s to AdaptationSet with groupId %d", stringIsoFileEntry.getKey(), group));
                 }
             }
             logger.info("AdaptationSet Done");
+            adaptationSets.put(trackId, tracksWithCurrentTracksId);
+        }
+        return adaptationSets;
+    }
 
-            AdaptationSetType adaptationSet = createAdaptationSet(periodType, tracksWithCurrentTracksId.values());
-            adaptationSet.setId(trackId);
-            adaptationSet.setGroup(group);
-            for (Map.Entry<String, IsoFile> e : tracksWithCurrentTracksId.entrySet()) {
-                IsoFile oneTrackFile = e.getValue();
-                String filename = e.getKey();
-                MovieHeaderBox mvhd = (MovieHeaderBox) Path.getPath(oneTrackFile, "/moov[0]/mvhd[0]");
-                MovieExtendsHeaderBox mehd = (MovieExtendsHeaderBox) Path.getPath(oneTrackFile, "/moov[0]/mvex[0]/mehd[0]");
-                RepresentationType representation = createRepresentation(adaptationSet, oneTrackFile);
-                SegmentBaseType segBaseType = representation.addNewSegmentBase();
-                createInitialization(segBaseType.addNewInitialization(), oneTrackFile);
-
-                segBaseType.setTimescale(mvhd.getTimescale());
-                segBaseType.setIndexRangeExact(true);
-                Box sidx = Path.getPath(oneTrackFile, "/sidx[0]");
-                segBaseType.setIndexRange(sidx.getOffset() + "-" + (sidx.getOffset() + sidx.getSize() - 1));
-
-                representation.setBandwidth(getBitrate(oneTrackFile));
-                representation.addNewBaseURL().setStringValue(filename);
-
-
-                double durationInSeconds = (double) mehd.getFragmentDuration() / mvhd.getTimescale();
-                maxDurationInSeconds = Math.max(maxDurationInSeconds, durationInSeconds);
+    /**
+     * @return duration of the longest file
+     */
+    GDuration getDuration() {
+        double maxDurationInSeconds = -1;
+        for (FileIndex file : getAllSingleTrackFiles()) {
+            maxDurationInSeconds = Math.max(maxDurationInSeconds, file.getDurationInSeconds());
+        }
+        return new GDuration(
+                1, 0, 0, 0, (int) (maxDurationInSeconds / 3600),
+                (int) ((maxDurationInSeconds % 3600) / 60),
+                (int) (maxDurationInSeconds % 60), BigDecimal.ZERO);
+    }
 
+    long getTimescale(FileIndex file) {
+        return file.getMovieTimescale();
+    }
 
-            }
-        }
-        return maxDurationInSeconds;
+    String getIndexRange(FileIndex file) {
+        return file.getSidxOffset() + "-" + (file.getSidxOffset() + file.getSidxSize() - 1);
     }
 
-    protected void createInitialization(URLType urlType, IsoFile isoFile) {
-        long offset = 0;
-        for (Box box : isoFile.getBoxes()) {
-            if ("moov".equals(box.getType())) {
-                urlType.setRange(String.format("%s-%s", offset, offset + box.getSize() - 1));
-                break;
-            }
-            offset += box.getSize();
+    String getInitializationRange(FileIndex file) {
+        if (file.getMoovOffset() < 0) {
+            return null;
         }
+        return String.format("%s-%s", file.getMoovOffset(), file.getMoovOffset() + file.getMoovSize() - 1);
     }
 
-    protected AdaptationSetType createAdaptationSet(PeriodType periodType, Collection<IsoFile> files) {
+    /**
+     * @return the key ID all encrypted files of the AdaptationSet share or <code>null</code> if none is encrypted
+     */
+    UUID getDefaultKeyId(Collection<FileIndex> files) {
         UUID keyId = null;
-        String language = null;
-        for (IsoFile track : files) {
-            TrackEncryptionBox tenc = (TrackEncryptionBox)
-                    Path.getPath(track, "/moov[0]/trak[0]/mdia[0]/minf[0]/stbl[0]/stsd[0]/encv[0]/sinf[0]/schi[0]/tenc[0]");
-            if (tenc != null) {
-                if (keyId != null && !keyId.equals(UUID.fromString(tenc.getDefault_KID()))) {
+        for (FileIndex track : files) {
+            if (track.getKeyId() != null) {
+                if (keyId != null && !keyId.equals(track.getKeyId())) {
                     throw new RuntimeException("The ManifestWriter cannot deal with more than ONE cek per adaptation set.");
                 }
-                keyId = UUID.fromString(tenc.getDefault_KID());
+                keyId = track.getKeyId();
             }
-            MediaHeaderBox mdhd = (MediaHeaderBox) Path.getPath(track, "/moov[0]/trak[0]/mdia[0]/mdhd[0]");
-            if (language != null && !language.endsWith(mdhd.getLanguage())) {
+        }
+        return keyId;
+    }
+
+    String getLanguage(Collection<FileIndex> files) {
+        String language = null;
+        for (FileIndex track : files) {
+            if (language != null && !language.endsWith(track.getLanguage())) {
                 throw new RuntimeException("The ManifestWriter cannot deal with more than ONE language " +
-                        "per adaptation set. (" + language + " vs. " + mdhd.getLanguage() + ")");
+                        "per adaptation set. (" + language + " vs. " + track.getLanguage() + ")");
             }
 
-            language = mdhd.getLanguage();
+            language = track.getLanguage();
         }
+        return language;
+    }
 
-
-        AdaptationSetType adaptationSet = periodType.addNewAdaptationSet();
-        adaptationSet.setSegmentAlignment(true);
-        adaptationSet.setStartWithSAP(1);
-        adaptationSet.setLang(language);
-        adaptationSet.setBitstreamSwitching(true);
-        String handler = ((HandlerBox) Path.getPath(files.iterator().next(), "/moov[0]/trak[0]/mdia[0]/hdlr[0]")).getHandlerType();
+    String getMimeType(Collection<FileIndex> files) {
+        String handler = files.iterator().next().getHandler();
         if (handler.equals("soun")) {
-//            adaptationSet.setMimeType("video/vnd.dece.audio");
-            adaptationSet.setMimeType("audio/mp4");
+//            return "video/vnd.dece.audio";
+            return "audio/mp4";
         } else if (handler.equals("vide")) {
-//            adaptationSet.setMimeType("video/vnd.dece.video");
-            adaptationSet.setMimeType("video/mp4");
+//            return "video/vnd.dece.video";
+            return "video/mp4";
         } else if (handler.equals("subt")) {
-            adaptationSet.setMimeType("video/vnd.dece.ttml+xml");
+            return "video/vnd.dece.ttml+xml";
         } else {
             throw new RuntimeException("Don't know what to do with handler type = " + handler);
         }
-
-        if (keyId != null) {
-            DescriptorType contentProtection = adaptationSet.addNewContentProtection();
-            final DefaultKIDAttribute defaultKIDAttribute = DefaultKIDAttribute.Factory.newInstance();
-            defaultKIDAttribute.setDefaultKID(Collections.singletonList(keyId.toString()));
-            contentProtection.set(defaultKIDAttribute);
-            contentProtection.setSchemeIdUri("urn:mpeg:dash:mp4protection:2011");
-            contentProtection.setValue("cenc");
-        }
-        return adaptationSet;
     }
 
-    public MPDDocument getManifest() throws IOException {
-
-        MPDDocument mdd = MPDDocument.Factory.newInstance();
-        MPDtype mpd = mdd.addNewMPD();
-        PeriodType periodType = mpd.addNewPeriod();
-        periodType.setId("0");
-        periodType.setStart(new GDuration(1, 0, 0, 0, 0, 0, 0, BigDecimal.ZERO));
-
-        ProgramInformationType programInformationType = mpd.addNewProgramInformation();
-        programInformationType.setMoreInformationURL("www.castLabs.com");
-
-
-        createPeriod(periodType);
-
+    long getBitrate(FileIndex file) {
+        return (long) (file.getFileSize() * 8 / file.getDurationInSeconds());
+    }
 
-        mpd.setProfiles("urn:mpeg:dash:profile:isoff-on-demand:2011");
-        mpd.setType(PresentationType.STATIC); // no mpd update strategy implemented yet, could be dynamic
-        mpd.setMinBufferTime(getMinBufferTime());
-        mpd.setMediaPresentationDuration(periodType.getDuration());
 
-        return mdd;
+    /**
+     * Selects whether Representation@bandwidth is the peak bitrate within a sliding window or the average bitrate
+     * of the whole file.
+     */
+    public void setPeakBandwidth(boolean peakBandwidth) {
+        this.peakBandwidth = peakBandwidth;
+        this.bandwidths = null;
     }
 
+    /**
+     * Length of the sliding window for the peak bitrate in seconds. The minBufferTime is used if not set.
+     */
+    public void setBandwidthWindow(double bandwidthWindow) {
+        this.bandwidthWindow = bandwidthWindow;
+        this.bandwidths = null;
+    }
 
-    class Buffer {
-        final long bandwidth;
-        final long timescale;
-
-        public Buffer(long bandwidth, long timescale) {
-            this.bandwidth = bandwidth;
-            this.timescale = timescale;
+    long getBandwidth(FileIndex file) throws IOException {
+        if (bandwidths == null) {
+            bandwidths = calculateBandwidths();
         }
+        return bandwidths.get(file);
+    }
 
-        long currentBufferFullness = 0;
-        long minBufferFullness = 0;
-
-        void simPlayback(long size, long videoTime) {
-            currentBufferFullness -= size;
-            currentBufferFullness += (double) videoTime / timescale * bandwidth / 8;
-            if (currentBufferFullness < minBufferFullness) {
-                minBufferFullness = currentBufferFullness;
+    /**
+     * Calculates the bandwidth of all files in parallel.
+     */
+    private Map<FileIndex, Long> calculateBandwidths() throws IOException {
+        List<FileIndex> files = new ArrayList<FileIndex>(getAllSingleTrackFiles());
+        Map<FileIndex, Long> bandwidths = new HashMap<FileIndex, Long>();
+        if (!peakBandwidth) {
+            for (FileIndex file : files) {
+                bandwidths.put(file, getBitrate(file));
             }
-
+            return bandwidths;
         }
-
+        // unrounded - minBufferTime is written in whole seconds
+        final double window = bandwidthWindow >= 0 ? bandwidthWindow : getCachedMinBufferTimeInSeconds();
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (final FileIndex file : files) {
+            tasks.add(new Callable<Long>() {
+                public Long call() throws Exception {
+                    return new PeakBandwidthCalculator(window).calculate(file);
+                }
+            });
+        }
+        List<Long> peaks = OrderedTasks.run(threads, tasks);
+        for (int i = 0; i < files.size(); i++) {
+            FileIndex file = files.get(i);
+            logger.info(String.format("%s has peak bandwidth of %d bit/s within %.1fs (average %d bit/s)",
+                    file, peaks.get(i), window, getBitrate(file)));
+            bandwidths.put(file, peaks.get(i));
+        }
+        return bandwidths;
     }
 
-    long getBitrate(Container file) {
-        MovieExtendsHeaderBox mehd = (MovieExtendsHeaderBox) Path.getPath(file, "/moov[0]/mvex[0]/mehd[0]");
-        MovieHeaderBox mvhd = (MovieHeaderBox) Path.getPath(file, "/moov[0]/mvhd[0]");
-        double durationInSeconds = (double) mehd.getFragmentDuration() / mvhd.getTimescale();
+    /**
+     * Number of representations analyzed in parallel when calculating bandwidth and minBufferTime.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
 
-        long size = 0;
-        for (Box box : file.getBoxes()) {
-            size += box.getSize();
+    /**
+     * @return the buffer requirement of each representation - the maximum is the MPD's minBufferTime
+     */
+    public List<MinBufferTimeCalculator.Result> getMinBufferTimeReport() throws IOException {
+        Map<FileIndex, Long> bandwidths = new LinkedHashMap<FileIndex, Long>();
+        for (FileIndex c : getAllSingleTrackFiles()) {
+            bandwidths.put(c, getBitrate(c));
         }
-
-        return (long) (size * 8 / durationInSeconds);
+        return new MinBufferTimeCalculator(threads).calculate(bandwidths);
     }
 
+    /**
+     * Calculates the minBufferTime once per manifest.
+     */
+    GDuration getCachedMinBufferTime() throws IOException {
+        return toDuration(getCachedMinBufferTimeInSeconds());
+    }
 
-    public GDuration getMinBufferTime() {
-        int requiredTimeInS = 0;
-        for (Container c : getAllSingleTrackFiles()) {
-            long bitrate = getBitrate(c);
-            long timescale = ((MediaHeaderBox) Path.getPath(c, "/moov[0]/trak[0]/mdia[0]/mdhd[0]")).getTimescale();
-            long requiredBuffer = 0;
-            Iterator<Box> iterator = c.getBoxes().iterator();
-            while (iterator.hasNext()) {
-
-                Box moofCand = iterator.next();
-                if (!moofCand.getType().equals("moof")) {
-                    continue;
-                }
-                MovieFragmentBox moof = (MovieFragmentBox) moofCand;
-                Box mdat = iterator.next();
-
-                Buffer currentBuffer = new Buffer(bitrate, timescale);
-                currentBuffer.simPlayback(moof.getSize(), 0);
-                for (TrackRunBox trun : moof.getTrackRunBoxes()) {
-                    for (TrackRunBox.Entry entry : trun.getEntries()) {
-
-
-                        long sampleDuration;
-                        if (trun.isSampleDurationPresent()) {
-                            sampleDuration = trun.getEntries().get(0).getSampleDuration();
-                        } else {
-                            TrackFragmentHeaderBox tfhd = (TrackFragmentHeaderBox) Path.getPath(moof, "traf[0]/tfhd[0]");
-                            if (tfhd.hasDefaultSampleDuration()) {
-                                sampleDuration = tfhd.getDefaultSampleDuration();
-                            } else {
-                                TrackExtendsBox trex = (TrackExtendsBox) Path.getPath(c, "/moov[0]/mvex[0]/trex[0]");
-                                sampleDuration = trex.getDefaultSampleDuration();
-                            }
-                        }
-
-
-                        long size;
-                        if (trun.isSampleSizePresent()) {
-                            size = entry.getSampleSize();
-                        } else {
-                            TrackFragmentHeaderBox tfhd = (TrackFragmentHeaderBox) Path.getPath(moof, "traf[0]/tfhd[0]");
-                            if (tfhd.hasDefaultSampleSize()) {
-                                size = tfhd.getDefaultSampleSize();
-                            } else {
-                                TrackExtendsBox trex = (TrackExtendsBox) Path.getPath(c, "/moov[0]/mvex[0]/trex[0]");
-                                size = trex.getDefaultSampleSize();
-                            }
-                        }
-                        currentBuffer.simPlayback(size, sampleDuration);
-                    }
+    /**
+     * @return the minBufferTime in seconds before it's rounded down to whole seconds for the MPD
+     */
+    double getCachedMinBufferTimeInSeconds() throws IOException {
+        if (minBufferTimeInSeconds == null) {
+            minBufferTimeInSeconds = getMinBufferTimeInSeconds();
+        }
+        return minBufferTimeInSeconds;
+    }
 
-                }
-                requiredBuffer = Math.max(requiredBuffer, -(currentBuffer.minBufferFullness + currentBuffer.currentBufferFullness));
+    public GDuration getMinBufferTime() throws IOException {
+        return toDuration(getMinBufferTimeInSeconds());
+    }
 
+    private double getMinBufferTimeInSeconds() throws IOException {
+        List<MinBufferTimeCalculator.Result> report = getMinBufferTimeReport();
+        MinBufferTimeCalculator.Result max = null;
+        for (MinBufferTimeCalculator.Result result : report) {
+            logger.log(Level.INFO, String.format("%s has minBufferTime of %.1f (%d bytes at %d bit/s)",
+                    result.getName(), result.getMinBufferTime(), result.getRequiredBuffer(), result.getBandwidth()));
+            if (max == null || result.getMinBufferTime() > max.getMinBufferTime()) {
+                max = result;
             }
-            logger.log(Level.INFO, c.toString() + " has minBufferTime of " + Math.ceil((double) requiredBuffer / (bitrate / 8)));
-            requiredTimeInS = (int) Math.max(requiredTimeInS, Math.ceil((double) requiredBuffer / (bitrate / 8)));
         }
-        return new GDuration(1, 0, 0, 0, 0, 0, requiredTimeInS, BigDecimal.ZERO);
+        if (max == null) {
+            return 0;
+        }
+        logger.log(Level.INFO, max.getName() + " determines the minBufferTime");
+        return max.getMinBufferTime();
+    }
+
+    private static GDuration toDuration(double seconds) {
+        return new GDuration(1, 0, 0, 0, 0, 0, (int) seconds, BigDecimal.ZERO);
     }
 
 }
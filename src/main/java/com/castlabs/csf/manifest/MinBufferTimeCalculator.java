@@ -0,0 +1,120 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.manifest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Leaky bucket simulation of each representation at its own bandwidth: every fragment is downloaded while
+ * its samples are played back. The largest deficit over all fragments is the buffer a client needs up front.
+ * <p/>
+ * Sample sizes and durations are taken from the primitive arrays of the {@link FileIndex} where tfhd and trex
+ * defaults are already resolved. Representations are simulated in parallel.
+ */
+public class MinBufferTimeCalculator {
+    private final int threads;
+
+    /**
+     * Buffer requirement of a single representation.
+     */
+    public static class Result {
+        private final String name;
+        private final long bandwidth;
+        private final long requiredBuffer;
+
+        Result(String name, long bandwidth, long requiredBuffer) {
+            this.name = name;
+            this.bandwidth = bandwidth;
+            this.requiredBuffer = requiredBuffer;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return bandwidth in bit/s the representation was simulated with
+         */
+        public long getBandwidth() {
+            return bandwidth;
+        }
+
+        /**
+         * @return bytes to be buffered before playback can start
+         */
+        public long getRequiredBuffer() {
+            return requiredBuffer;
+        }
+
+        /**
+         * @return seconds needed to fill the required buffer at the representation's bandwidth
+         */
+        public double getMinBufferTime() {
+            return Math.ceil((double) requiredBuffer / (bandwidth / 8));
+        }
+    }
+
+    public MinBufferTimeCalculator(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Simulates all files, each with the given bandwidth.
+     *
+     * @return one result per file in the iteration order of <code>bandwidths</code>
+     */
+    public List<Result> calculate(Map<FileIndex, Long> bandwidths) throws IOException {
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+        for (final Map.Entry<FileIndex, Long> e : bandwidths.entrySet()) {
+            tasks.add(new Callable<Result>() {
+                public Result call() throws Exception {
+                    return calculate(e.getKey(), e.getValue());
+                }
+            });
+        }
+        return OrderedTasks.run(threads, tasks);
+    }
+
+    public Result calculate(FileIndex file, long bandwidth) {
+        long timescale = file.getMediaTimescale();
+        long[] moofSizes = file.getMoofSizes();
+        int[] sampleCounts = file.getFragmentSampleCounts();
+        long[] sizes = file.getSampleSizes();
+        long[] durations = file.getSampleDurations();
+
+        long requiredBuffer = 0;
+        int firstSample = 0;
+        for (int i = 0; i < moofSizes.length; i++) {
+            requiredBuffer = Math.max(requiredBuffer,
+                    simulateFragment(moofSizes[i], sizes, durations, firstSample, sampleCounts[i], timescale, bandwidth));
+            firstSample += sampleCounts[i];
+        }
+        return new Result(file.toString(), bandwidth, requiredBuffer);
+    }
+
+    /**
+     * Downloads the moof and then each sample while the previous ones are played back.
+     *
+     * @return the buffer needed to play this fragment without stalling
+     */
+    private static long simulateFragment(long moofSize, long[] sizes, long[] durations, int firstSample, int count,
+                                         long timescale, long bandwidth) {
+        long fullness = -moofSize;
+        long minFullness = Math.min(0, fullness);
+        for (int i = firstSample; i < firstSample + count; i++) {
+            fullness -= sizes[i];
+            fullness += (double) durations[i] / timescale * bandwidth / 8;
+            if (fullness < minFullness) {
+                minFullness = fullness;
+            }
+        }
+        return -(minFullness + fullness);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.manifest;
+
+/**
+ * Peak bandwidth of a representation: the highest bitrate within any window of the given duration. Windows are
+ * built from the media references of the segment index. Files without sidx fall back to the sample sizes
+ * of the trun boxes. Both are taken from the {@link FileIndex}, the mdat boxes are never read.
+ * <p/>
+ * The window is at least as long as the longest fragment. A shorter window would report the bitrate of a single
+ * sample - an I-frame - for files without sidx.
+ */
+public class PeakBandwidthCalculator {
+    private final double windowInSeconds;
+
+    /**
+     * @param windowInSeconds length of the sliding window - usually the minBufferTime
+     */
+    public PeakBandwidthCalculator(double windowInSeconds) {
+        this.windowInSeconds = windowInSeconds;
+    }
+
+    /**
+     * @return peak bandwidth in bit/s
+     */
+    public long calculate(FileIndex file) {
+        if (file.getReferenceSizes().length > 0) {
+            return peak(file.getReferenceSizes(), file.getReferenceDurations(), file.getReferenceTimescale(),
+                    max(file.getReferenceDurations()));
+        }
+        // no segment index - the moof is accounted to the fragment's first sample
+        long[] sizes = file.getSampleSizes().clone();
+        int firstSample = 0;
+        for (int i = 0; i < file.getMoofSizes().length; i++) {
+            if (file.getFragmentSampleCounts()[i] > 0) {
+                sizes[firstSample] += file.getMoofSizes()[i];
+            }
+            firstSample += file.getFragmentSampleCounts()[i];
+        }
+        return peak(sizes, file.getSampleDurations(), file.getMediaTimescale(), max(file.getFragmentDurations()));
+    }
+
+    private static long max(long[] values) {
+        long max = 0;
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    /**
+     * Slides the window over the index entries. Entries enter the window at its end and leave it at its start
+     * as soon as the remaining entries still cover the window duration, so every entry is added and removed
+     * once.
+     *
+     * @param minWindow shortest window in timescale units
+     */
+    private long peak(long[] sizes, long[] durations, long timescale, long minWindow) {
+        long window = Math.max((long) Math.ceil(windowInSeconds * timescale), minWindow);
+        long bytes = 0;
+        long duration = 0;
+        int first = 0;
+        double peak = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            bytes += sizes[i];
+            duration += durations[i];
+            while (first < i && duration - durations[first] >= window) {
+                bytes -= sizes[first];
+                duration -= durations[first];
+                first++;
+            }
+            if (duration >= window && duration > 0) {
+                peak = Math.max(peak, (double) bytes * 8 * timescale / duration);
+            }
+        }
+        if (peak == 0 && duration > 0) {
+            // content is shorter than the window
+            peak = (double) bytes * 8 * timescale / duration;
+        }
+        return (long) Math.ceil(peak);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.manifest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The SegmentTimeline of a segmented output. Runs of segments with the same duration are merged into a single
+ * <code>S</code> element with repeat count <code>@r</code>, so content with constant segment durations needs one
+ * element only (plus one for a shorter last segment).
+ */
+public class SegmentTimeline {
+    private final long timescale;
+    private final List<Entry> entries;
+
+    /**
+     * A single <code>S</code> element.
+     */
+    public static class Entry {
+        /**
+         * Start time or -1 if the segment directly follows its predecessor
+         */
+        public final long t;
+        public final long d;
+        public final long r;
+
+        Entry(long t, long d, long r) {
+            this.t = t;
+            this.d = d;
+            this.r = r;
+        }
+    }
+
+    public SegmentTimeline(FileIndex file) {
+        this.timescale = file.getMediaTimescale();
+        List<Entry> entries = new ArrayList<Entry>();
+        long[] durations = file.getFragmentDurations();
+        int first = 0;
+        while (first < durations.length) {
+            int last = first;
+            while (last + 1 < durations.length && durations[last + 1] == durations[first]) {
+                last++;
+            }
+            entries.add(new Entry(first == 0 ? file.getFirstDecodeTime() : -1, durations[first], last - first));
+            first = last + 1;
+        }
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    public long getTimescale() {
+        return timescale;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.manifest;
+
+import com.coremedia.iso.boxes.*;
+import com.coremedia.iso.boxes.fragment.MovieExtendsHeaderBox;
+import com.coremedia.iso.boxes.fragment.TrackExtendsBox;
+import com.googlecode.mp4parser.boxes.basemediaformat.TrackEncryptionBox;
+import com.googlecode.mp4parser.boxes.dece.ContentInformationBox;
+
+/**
+ * Typed view of the boxes of a single track (CFF) file the manifest is created from. All boxes are resolved in
+ * one walk over the moov box instead of one path lookup per box and use. Boxes that are not present are
+ * <code>null</code>. Only the first trak is considered.
+ */
+public class TrackMetadata {
+    public final int trackCount;
+    public final MovieHeaderBox mvhd;
+    public final MovieExtendsHeaderBox mehd;
+    public final TrackExtendsBox trex;
+    public final ContentInformationBox cinf;
+    public final TrackHeaderBox tkhd;
+    public final MediaHeaderBox mdhd;
+    public final HandlerBox hdlr;
+    /**
+     * First sample entry of the stsd box
+     */
+    public final Box sampleEntry;
+    /**
+     * tenc of an encrypted (encv, enca) sample entry
+     */
+    public final TrackEncryptionBox tenc;
+
+    public TrackMetadata(Container file) {
+        int trackCount = 0;
+        MovieHeaderBox mvhd = null;
+        MovieExtendsHeaderBox mehd = null;
+        TrackExtendsBox trex = null;
+        ContentInformationBox cinf = null;
+        TrackBox trak = null;
+        for (Box box : file.getBoxes()) {
+            if (box instanceof MovieBox) {
+                for (Box moovChild : ((MovieBox) box).getBoxes()) {
+                    if (moovChild instanceof MovieHeaderBox) {
+                        mvhd = (MovieHeaderBox) moovChild;
+                    } else if (moovChild instanceof TrackBox) {
+                        if (trackCount++ == 0) {
+                            trak = (TrackBox) moovChild;
+                        }
+                    } else if (moovChild instanceof ContentInformationBox) {
+                        cinf = (ContentInformationBox) moovChild;
+                    } else if (moovChild.getType().equals("mvex")) {
+                        for (Box mvexChild : ((Container) moovChild).getBoxes()) {
+                            if (mvexChild instanceof MovieExtendsHeaderBox) {
+                                mehd = (MovieExtendsHeaderBox) mvexChild;
+                            } else if (mvexChild instanceof TrackExtendsBox && trex == null) {
+                                trex = (TrackExtendsBox) mvexChild;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        this.trackCount = trackCount;
+        this.mvhd = mvhd;
+        this.mehd = mehd;
+        this.trex = trex;
+        this.cinf = cinf;
+
+        TrackHeaderBox tkhd = null;
+        MediaHeaderBox mdhd = null;
+        HandlerBox hdlr = null;
+        Box sampleEntry = null;
+        TrackEncryptionBox tenc = null;
+        if (trak != null) {
+            for (Box trakChild : trak.getBoxes()) {
+                if (trakChild instanceof TrackHeaderBox) {
+                    tkhd = (TrackHeaderBox) trakChild;
+                } else if (trakChild instanceof MediaBox) {
+                    for (Box mdiaChild : ((MediaBox) trakChild).getBoxes()) {
+                        if (mdiaChild instanceof MediaHeaderBox) {
+                            mdhd = (MediaHeaderBox) mdiaChild;
+                        } else if (mdiaChild instanceof HandlerBox) {
+                            hdlr = (HandlerBox) mdiaChild;
+                        }
+                    }
+                }
+            }
+            SampleDescriptionBox stsd = trak.getSampleTableBox() != null ? trak.getSampleTableBox().getSampleDescriptionBox() : null;
+            if (stsd != null && !stsd.getBoxes().isEmpty()) {
+                sampleEntry = stsd.getBoxes().get(0);
+                tenc = findTenc(sampleEntry);
+            }
+        }
+        this.tkhd = tkhd;
+        this.mdhd = mdhd;
+        this.hdlr = hdlr;
+        this.sampleEntry = sampleEntry;
+        this.tenc = tenc;
+    }
+
+    private static TrackEncryptionBox findTenc(Box sampleEntry) {
+        if (!(sampleEntry instanceof Container)) {
+            return null;
+        }
+        for (Box sinf : ((Container) sampleEntry).getBoxes()) {
+            if (sinf.getType().equals("sinf")) {
+                for (Box schi : ((Container) sinf).getBoxes()) {
+                    if (schi.getType().equals("schi")) {
+                        for (Box tenc : ((Container) schi).getBoxes()) {
+                            if (tenc instanceof TrackEncryptionBox) {
+                                return (TrackEncryptionBox) tenc;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    public String getHandlerType() {
+        return hdlr != null ? hdlr.getHandlerType() : null;
+    }
+}
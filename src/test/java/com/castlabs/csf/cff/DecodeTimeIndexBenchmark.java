@@ -0,0 +1,63 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.coremedia.iso.boxes.fragment.TrackFragmentBox;
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.builder.FragmentIntersectionFinder;
+
+import java.util.List;
+
+/**
+ * Times the per-track timing work of the builder - building the {@link DecodeTimeIndex}, determining the fragments
+ * and creating a tfdt per fragment - for synthetic tracks of 10k, 100k and 1M samples. The time per sample should
+ * stay flat as the track grows.
+ * <p/>
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.castlabs.csf.cff.DecodeTimeIndexBenchmark</code>
+ */
+public class DecodeTimeIndexBenchmark {
+    private static final int[] SAMPLE_COUNTS = {10000, 100000, 1000000};
+    private static final int GOP_LENGTH = 48;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        // warm-up so that the first size isn't measured in the interpreter
+        for (int i = 0; i < 3; i++) {
+            run(new SyntheticTrack(SAMPLE_COUNTS[1], GOP_LENGTH));
+        }
+        System.out.println("samples      best [ms]  per sample [ns]");
+        for (int sampleCount : SAMPLE_COUNTS) {
+            SyntheticTrack track = new SyntheticTrack(sampleCount, GOP_LENGTH);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; i++) {
+                best = Math.min(best, run(track));
+            }
+            System.out.println(String.format("%7d  %12.2f  %15.1f", sampleCount, best / 1e6, (double) best / sampleCount));
+        }
+    }
+
+    /**
+     * @return nanoseconds spent
+     */
+    private static long run(final SyntheticTrack track) {
+        long start = System.nanoTime();
+        StreamingDeliveryTargetMp4Builder builder = new StreamingDeliveryTargetMp4Builder();
+        builder.setIntersectionFinder(new FragmentIntersectionFinder() {
+            public long[] sampleNumbers(Track t) {
+                return track.getFragmentStartSamples();
+            }
+        });
+        List<StreamingDeliveryTargetMp4Builder.Fragment> fragments = builder.createFragments(track);
+        for (StreamingDeliveryTargetMp4Builder.Fragment fragment : fragments) {
+            builder.createTfdt(fragment.startSample, track, new TrackFragmentBox());
+        }
+        long time = System.nanoTime() - start;
+        if (fragments.size() != track.getFragmentStartSamples().length) {
+            throw new RuntimeException("Expected " + track.getFragmentStartSamples().length + " fragments but got " + fragments.size());
+        }
+        return time;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.builder.FragmentIntersectionFinder;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times the per-fragment sidx statistics (earliest presentation time, SAP type, duration) of
+ * <code>createFragments</code> on a synthetic track with 100k fragments. For comparison the same statistics are
+ * computed the way the builder used to: a presentation time array per fragment that is sorted.
+ * <p/>
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.castlabs.csf.cff.SidxStatisticsBenchmark</code>
+ */
+public class SidxStatisticsBenchmark {
+    private static final int FRAGMENTS = 100000;
+    private static final int GOP_LENGTH = 12;
+    private static final int RUNS = 10;
+
+    public static void main(String[] args) {
+        final SyntheticTrack track = new SyntheticTrack(FRAGMENTS * GOP_LENGTH, GOP_LENGTH);
+        StreamingDeliveryTargetMp4Builder builder = new StreamingDeliveryTargetMp4Builder();
+        builder.setIntersectionFinder(new FragmentIntersectionFinder() {
+            public long[] sampleNumbers(Track t) {
+                return track.getFragmentStartSamples();
+            }
+        });
+        DecodeTimeIndex decodeTimeIndex = builder.getDecodeTimeIndex(track); // built once per track, not measured
+
+        long single = Long.MAX_VALUE;
+        long sorted = Long.MAX_VALUE;
+        List<StreamingDeliveryTargetMp4Builder.Fragment> fragments = null;
+        long[] reference = null;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            fragments = builder.createFragments(track);
+            single = Math.min(single, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            reference = sortPerFragment(decodeTimeIndex, track.getFragmentStartSamples(), track.getSamples().size());
+            sorted = Math.min(sorted, System.nanoTime() - start);
+        }
+        for (int i = 0; i < fragments.size(); i++) {
+            if (fragments.get(i).earliestPresentationTime != reference[2 * i] || fragments.get(i).sapType != reference[2 * i + 1]) {
+                throw new RuntimeException("Fragment " + (i + 1) + " differs from the reference");
+            }
+        }
+        System.out.println(String.format("%d fragments of %d samples, best of %d runs", fragments.size(), GOP_LENGTH, RUNS));
+        System.out.println(String.format("single pass      %8.2f ms  %6.1f ns/fragment", single / 1e6, (double) single / fragments.size()));
+        System.out.println(String.format("sort / fragment  %8.2f ms  %6.1f ns/fragment", sorted / 1e6, (double) sorted / fragments.size()));
+    }
+
+    /**
+     * The previous implementation: earliest presentation time and SAP type from a sorted copy of the fragment's
+     * presentation times.
+     *
+     * @return earliest presentation time and SAP type of each fragment
+     */
+    private static long[] sortPerFragment(DecodeTimeIndex decodeTimeIndex, long[] startSamples, int sampleCount) {
+        long[] result = new long[2 * startSamples.length];
+        for (int i = 0; i < startSamples.length; i++) {
+            long startSample = startSamples[i];
+            long endSample = i + 1 < startSamples.length ? startSamples[i + 1] : sampleCount + 1;
+            long[] ptss = new long[(int) (endSample - startSample)];
+            for (int j = 0; j < ptss.length; j++) {
+                ptss[j] = decodeTimeIndex.getPresentationTime(startSample + j);
+            }
+            long first = ptss[0];
+            Arrays.sort(ptss);
+            result[2 * i] = ptss[0];
+            result[2 * i + 1] = first > ptss[0] ? 0 : 1;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.castlabs.csf.cff;
+
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.coremedia.iso.boxes.SampleDescriptionBox;
+import com.googlecode.mp4parser.authoring.AbstractTrack;
+import com.googlecode.mp4parser.authoring.Sample;
+import com.googlecode.mp4parser.authoring.TrackMetaData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Video track of the given number of samples without sample data: 25 fps with a sync sample every
+ * <code>gopLength</code> samples and B-frame like composition time offsets. Good enough for everything that only
+ * looks at the sample tables.
+ */
+class SyntheticTrack extends AbstractTrack {
+    static final long TIMESCALE = 90000;
+    static final long SAMPLE_DURATION = 3600;
+    static final int SAMPLE_SIZE = 1000;
+
+    private final TrackMetaData trackMetaData = new TrackMetaData();
+    private final long[] sampleDurations;
+    private final long[] syncSamples;
+    private final List<CompositionTimeToSample.Entry> compositionTimeEntries;
+    private final List<Sample> samples;
+
+    SyntheticTrack(final int sampleCount, int gopLength) {
+        super("synthetic");
+        trackMetaData.setTimescale(TIMESCALE);
+        trackMetaData.setTrackId(1);
+        sampleDurations = new long[sampleCount];
+        Arrays.fill(sampleDurations, SAMPLE_DURATION);
+        syncSamples = new long[(sampleCount + gopLength - 1) / gopLength];
+        for (int i = 0; i < syncSamples.length; i++) {
+            syncSamples[i] = 1 + (long) i * gopLength;
+        }
+        // I/P frames are presented two samples late, B frames right away
+        compositionTimeEntries = new ArrayList<CompositionTimeToSample.Entry>(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            compositionTimeEntries.add(new CompositionTimeToSample.Entry(1, i % 3 == 0 ? (int) (2 * SAMPLE_DURATION) : 0));
+        }
+        samples = new AbstractList<Sample>() {
+            @Override
+            public Sample get(int index) {
+                return SYNTHETIC_SAMPLE;
+            }
+
+            @Override
+            public int size() {
+                return sampleCount;
+            }
+        };
+    }
+
+    /**
+     * Fragment start samples: every sync sample.
+     */
+    long[] getFragmentStartSamples() {
+        return syncSamples;
+    }
+
+    public List<Sample> getSamples() {
+        return samples;
+    }
+
+    public long[] getSampleDurations() {
+        return sampleDurations;
+    }
+
+    @Override
+    public long[] getSyncSamples() {
+        return syncSamples;
+    }
+
+    @Override
+    public List<CompositionTimeToSample.Entry> getCompositionTimeEntries() {
+        return compositionTimeEntries;
+    }
+
+    public SampleDescriptionBox getSampleDescriptionBox() {
+        return new SampleDescriptionBox();
+    }
+
+    public TrackMetaData getTrackMetaData() {
+        return trackMetaData;
+    }
+
+    public String getHandler() {
+        return "vide";
+    }
+
+    public void close() throws IOException {
+    }
+
+    private static final Sample SYNTHETIC_SAMPLE = new Sample() {
+        public void writeTo(WritableByteChannel channel) throws IOException {
+            channel.write(asByteBuffer());
+        }
+
+        public long getSize() {
+            return SAMPLE_SIZE;
+        }
+
+        public ByteBuffer asByteBuffer() {
+            return ByteBuffer.allocate(SAMPLE_SIZE);
+        }
+    };
+}